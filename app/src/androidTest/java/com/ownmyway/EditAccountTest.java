@@ -5,7 +5,6 @@ import android.widget.EditText;
 import androidx.test.platform.app.InstrumentationRegistry;
 import androidx.test.rule.ActivityTestRule;
 
-import com.ownmyway.controllers.EventCompletionListener;
 import com.ownmyway.model.Account;
 import com.ownmyway.model.Rider;
 import com.ownmyway.model.User;
@@ -40,8 +39,7 @@ public class EditAccountTest {
         rider.setRiderLoggedOn(true);
         User mockUser = rider;
         App.getModel().setSessionUser(mockUser);
-        EventCompletionListener listener = (resultData, err) -> {};
-        App.getAuthDBManager().signIn("testUser@test.test","password", listener);
+        App.getAuthDBManager().signIn("testUser@test.test","password");
     }
 
     @Rule
@@ -0,0 +1,122 @@
+package com.ownmyway;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.ownmyway.db.DBManager;
+import com.ownmyway.db.InMemoryBackend;
+import com.ownmyway.model.Driver;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.UserLocation;
+import com.ownmyway.services.MatchingEngine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Matches pending trips to drivers with both strategies of the MatchingEngine, on trips and
+ * drivers stored in an InMemoryBackend over a 30km square around Edmonton. The assignments are
+ * checked and then accepted through DBManager, which must succeed for every one of them since no
+ * two drivers are given the same trip. Throughput and average pickup distance are written to the log.
+ */
+public class MatchingEngineBenchmark {
+    private static final String TAG = "In Matching Engine Benchmark";
+    private static final double MAX_PICKUP_KM = 5.0;
+    private static final int BATCH_SIZE = 200;
+    private static final long TIME_BUDGET_MILLIS = 500;
+
+    @Test
+    public void benchmarkMatching() throws Exception {
+        for (int drivers : new int[] {100, 1000, 5000}) {
+            benchmark(drivers, drivers * 2);
+        }
+    }
+
+    private void benchmark(int driverCount, int tripCount) throws Exception {
+        InMemoryBackend backend = new InMemoryBackend(0, 4);
+        DBManager dbManager = new DBManager(backend);
+        try {
+            Random random = new Random(driverCount);
+            List<Task<?>> writes = new ArrayList<>();
+            List<Driver> drivers = new ArrayList<>(driverCount);
+            for (int i = 0; i < driverCount; i++) {
+                Driver driver = new Driver();
+                driver.setDocID("driver" + i);
+                // Every tenth driver is logged off and must not be given a trip
+                driver.setLoggedOn(i % 10 != 0);
+                driver.setCurrentUserLocation(randomLocation(random));
+                drivers.add(driver);
+                writes.add(dbManager.createDriver(driver.getDocID(), driver));
+            }
+            List<Trip> trips = new ArrayList<>(tripCount);
+            for (int i = 0; i < tripCount; i++) {
+                Trip trip = new Trip("rider" + i, 20, randomLocation(random), randomLocation(random), "user" + i);
+                trip.setCreatedAt(i);
+                trips.add(trip);
+                writes.add(dbManager.createTrip(trip, false));
+            }
+            Tasks.await(Tasks.whenAll(writes));
+
+            MatchingEngine engine = new MatchingEngine(MAX_PICKUP_KM, BATCH_SIZE, TIME_BUDGET_MILLIS);
+            MatchingEngine.Result result = null;
+            for (MatchingEngine.Strategy strategy : MatchingEngine.Strategy.values()) {
+                result = engine.match(trips, drivers, strategy);
+                MatchingEngine.Stats stats = result.getStats();
+                checkAssignments(result);
+                Log.d(TAG, driverCount + " drivers, " + tripCount + " trips, " + strategy + ": " +
+                        stats.getAssigned() + " assigned in " + stats.getElapsedNanos() / 1000000 + " ms (" +
+                        (long) stats.getThroughput() + " per second), average pickup " +
+                        String.format("%.3f", stats.getAveragePickupKm()) + " km, " +
+                        stats.getOptimalBatches() + " of " + stats.getBatches() + " batches optimal");
+            }
+
+            // Accept the last assignments, none of them may conflict
+            List<Task<Trip>> accepts = new ArrayList<>();
+            for (MatchingEngine.Assignment assignment : result.getAssignments()) {
+                accepts.add(dbManager.acceptTrip(assignment.getTrip().getRiderID(),
+                        assignment.getDriver().getDocID(), 1, false));
+            }
+            long start = System.nanoTime();
+            Tasks.await(Tasks.whenAllComplete(accepts));
+            long acceptNanos = System.nanoTime() - start;
+            for (Task<Trip> accept : accepts) {
+                assertTrue(accept.isSuccessful());
+                assertEquals(Trip.STATUS.DRIVER_ACCEPT, accept.getResult().getStatus());
+            }
+            Log.d(TAG, accepts.size() + " assignments accepted in " + acceptNanos / 1000000 + " ms");
+        } finally {
+            backend.shutdown();
+        }
+    }
+
+    /**
+     * Every driver and trip is used at most once, only available drivers and pending trips are
+     * used, and no pickup is farther than the limit
+     */
+    private static void checkAssignments(MatchingEngine.Result result) {
+        Set<String> tripIDs = new HashSet<>();
+        Set<String> driverIDs = new HashSet<>();
+        for (MatchingEngine.Assignment assignment : result.getAssignments()) {
+            assertTrue(tripIDs.add(assignment.getTrip().getRiderID()));
+            assertTrue(driverIDs.add(assignment.getDriver().getDocID()));
+            assertTrue(MatchingEngine.isAvailable(assignment.getDriver()));
+            assertEquals(Trip.STATUS.PENDING, assignment.getTrip().getStatus());
+            assertTrue(assignment.getPickupKm() <= MAX_PICKUP_KM);
+        }
+        assertTrue(result.getAssignments().size() <= result.getStats().getAvailableDrivers());
+    }
+
+    private static UserLocation randomLocation(Random random) {
+        // About 30km by 30km
+        return new UserLocation(53.4 + random.nextDouble() * 0.27, -113.75 + random.nextDouble() * 0.45);
+    }
+}
@@ -0,0 +1,148 @@
+package com.ownmyway;
+
+import android.util.Log;
+
+import com.ownmyway.db.ModelCodec;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.UserLocation;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.Source;
+import com.google.firebase.firestore.WriteBatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Compares reading trips with the hand-written ModelCodec against DocumentSnapshot.toObject on a
+ * large snapshot. The trips are only written to Firebase's local cache, the network is off for the
+ * whole run, so the timings only cover decoding. Results are written to the log.
+ */
+public class ModelCodecBenchmark {
+    private static final String TAG = "In Codec Benchmark";
+    private static final String COLLECTION = "CodecBenchmark";
+    private static final int TRIPS = 2000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 10;
+    /** Firestore's limit on writes in one batch */
+    private static final int BATCH_SIZE = 500;
+
+    private FirebaseFirestore database;
+    private CollectionReference collection;
+
+    @Before
+    public void setUp() throws Exception {
+        database = FirebaseFirestore.getInstance();
+        collection = database.collection(COLLECTION);
+        Tasks.await(database.disableNetwork());
+        // Commits only complete once the server has them, the local cache already has them
+        WriteBatch batch = database.batch();
+        for (int i = 0; i < TRIPS; i++) {
+            UserLocation start = new UserLocation(53.5 + i * 1e-4, -113.5 - i * 1e-4);
+            start.setAddress("Start " + i);
+            UserLocation end = new UserLocation(53.6 - i * 1e-4, -113.4 + i * 1e-4);
+            end.setAddress("End " + i);
+            Trip trip = new Trip("rider" + i, 10 + i % 40, start, end, "user" + i);
+            trip.setQueuePosition(i);
+            if (i % 2 == 0) {
+                trip.setStatus(Trip.STATUS.COMPLETED);
+                trip.setCompletedAt(1000000L + i);
+            }
+            batch.set(collection.document("rider" + i), trip);
+            if ((i + 1) % BATCH_SIZE == 0) {
+                batch.commit();
+                batch = database.batch();
+            }
+        }
+        batch.commit();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        WriteBatch batch = database.batch();
+        for (int i = 0; i < TRIPS; i++) {
+            batch.delete(collection.document("rider" + i));
+            if ((i + 1) % BATCH_SIZE == 0) {
+                batch.commit();
+                batch = database.batch();
+            }
+        }
+        batch.commit();
+        Tasks.await(database.enableNetwork());
+    }
+
+    @Test
+    public void benchmarkTripDecoding() throws Exception {
+        QuerySnapshot snapshot = Tasks.await(collection.get(Source.CACHE));
+        List<DocumentSnapshot> documents = snapshot.getDocuments();
+        assertEquals(TRIPS, documents.size());
+
+        // Both decoders must read the same trips
+        for (DocumentSnapshot document : documents) {
+            Trip expected = document.toObject(Trip.class);
+            Trip actual = ModelCodec.toTrip(document);
+            assertEquals(expected.getDocID(), actual.getDocID());
+            assertEquals(expected.getRiderID(), actual.getRiderID());
+            assertEquals(expected.getDriverID(), actual.getDriverID());
+            assertEquals(expected.getStatus(), actual.getStatus());
+            assertEquals(expected.getFareOffering(), actual.getFareOffering());
+            assertEquals(expected.getRiderUserName(), actual.getRiderUserName());
+            assertEquals(expected.getGeohash(), actual.getGeohash());
+            assertEquals(expected.getQueuePosition(), actual.getQueuePosition());
+            assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+            assertEquals(expected.getCompletedAt(), actual.getCompletedAt());
+            assertEquals(expected.getStartUserLocation().getLatitude(), actual.getStartUserLocation().getLatitude());
+            assertEquals(expected.getStartUserLocation().getAddress(), actual.getStartUserLocation().getAddress());
+            assertEquals(expected.getEndUserLocation().getLongitude(), actual.getEndUserLocation().getLongitude());
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            decodeWithToObject(documents);
+            decodeWithCodec(documents);
+        }
+        long toObjectNanos = 0;
+        long codecNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            decodeWithToObject(documents);
+            toObjectNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            decodeWithCodec(documents);
+            codecNanos += System.nanoTime() - start;
+        }
+
+        long decodes = (long) ROUNDS * TRIPS;
+        Log.d(TAG, "toObject: " + toObjectNanos / decodes + " ns per trip");
+        Log.d(TAG, "ModelCodec: " + codecNanos / decodes + " ns per trip");
+        assertTrue(codecNanos > 0 && toObjectNanos > 0);
+    }
+
+    private static int decodeWithToObject(List<DocumentSnapshot> documents) {
+        int decoded = 0;
+        for (DocumentSnapshot document : documents) {
+            if (document.toObject(Trip.class) != null) {
+                decoded++;
+            }
+        }
+        return decoded;
+    }
+
+    private static int decodeWithCodec(List<DocumentSnapshot> documents) {
+        int decoded = 0;
+        for (DocumentSnapshot document : documents) {
+            if (ModelCodec.toTrip(document) != null) {
+                decoded++;
+            }
+        }
+        return decoded;
+    }
+}
@@ -1,12 +1,21 @@
 package com.ownmyway;
 
 import com.ownmyway.model.ApplicationModel;
+import com.ownmyway.model.ArchivedTrip;
 import com.ownmyway.model.Driver;
+import com.ownmyway.model.GeoHash;
 import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripDelta;
 import com.ownmyway.model.UserLocation;
+import com.ownmyway.services.TripRanker;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertNotNull;
 import static junit.framework.TestCase.assertNull;
 import static junit.framework.TestCase.assertTrue;
@@ -42,6 +51,31 @@ public class ModelTest {
         assertTrue(l1.distanceTo(l2) == 1111.8957696000016);
     }
 
+    @Test
+    public void testDistanceKernels() {
+        double[][] pairs = {
+                {10, 10, 50, 50}, {0, 0, 0, 10}, {53.5461, -113.4938, 53.5232, -113.5263},
+                {53.5461, -113.4938, 53.5465, -113.4938}, {-33.9, 151.2, 51.5, -0.1}, {0, 179.9, 0, -179.9},
+        };
+        for (double[] pair : pairs) {
+            UserLocation l1 = new UserLocation(pair[0], pair[1]);
+            UserLocation l2 = new UserLocation(pair[2], pair[3]);
+            double expected = l1.distanceTo(l2);
+            // distanceTo loses precision a few meters apart, haversine does not
+            assertEquals(expected, l1.haversineDistanceTo(l2), expected * 1e-6);
+            if (expected < 100) {
+                assertEquals(expected, l1.equirectangularDistanceTo(l2), expected * 1e-3);
+            }
+            assertTrue(l1.boundsWithin(expected * 1.001).contains(l2));
+            assertFalse(l1.boundsWithin(expected * 0.5).contains(l2));
+        }
+        UserLocation l1 = new UserLocation(53.5461, -113.4938);
+        assertTrue(l1.haversineDistanceTo(l1) == 0.0);
+        l1.setLatitude(53.5);
+        assertEquals(l1.distanceTo(new UserLocation(53.6, -113.4938)),
+                l1.haversineDistanceTo(new UserLocation(53.6, -113.4938)), 1e-6);
+    }
+
     @Test
     public void testTripNextStatusValid() {
         Trip t = new Trip();
@@ -52,4 +86,91 @@ public class ModelTest {
         nxtStatus = Trip.STATUS.EN_ROUTE;
         assertFalse(t.nextStatusValid(nxtStatus));
     }
+
+    @Test
+    public void testGeoHash() {
+        assertEquals("u4pruydqqvj", GeoHash.encode(57.64911, 10.40744, 11));
+        UserLocation center = new UserLocation(53.5461, -113.4938);
+        List<String> cells = GeoHash.coveringCells(center, 6.0);
+        assertEquals(GeoHash.encode(53.5461, -113.4938, cells.get(0).length()), cells.get(0));
+        // A point 5km north of the center must fall into one of the covering cells
+        String north = GeoHash.encode(53.5461 + 5.0 / 111.19, -113.4938, GeoHash.STORED_PRECISION);
+        boolean covered = false;
+        for (String cell : cells) {
+            covered |= north.startsWith(cell);
+        }
+        assertTrue(covered);
+        // A radius wider than the one-character cells is covered by all of them
+        assertEquals(32, GeoHash.coveringCells(center, 10000.0).size());
+    }
+
+    @Test
+    public void testEmptyFirstTripDelta() {
+        ApplicationModel m = new ApplicationModel();
+        m.applySessionTripDelta(new TripDelta());
+        // A search that found nothing still shows an empty list
+        assertNotNull(m.getSessionTripList());
+        assertTrue(m.getSessionTripList().isEmpty());
+    }
+
+    @Test
+    public void testArchivedTrip() {
+        Trip t = new Trip("rider", 12.5, new UserLocation(53.5, -113.5), new UserLocation(53.6, -113.4), "user");
+        long now = t.getCreatedAt();
+        assertFalse(ArchivedTrip.isArchivable(t, now, Long.MAX_VALUE));
+        assertTrue(ArchivedTrip.isArchivable(t, now + 1, 0));
+        // A trip under way is never stale
+        t.setStatus(Trip.STATUS.EN_ROUTE);
+        assertFalse(ArchivedTrip.isArchivable(t, now + 1, Long.MAX_VALUE));
+        // A completed trip waits for the rider to pay
+        t.setStatus(Trip.STATUS.COMPLETED);
+        t.setCompletedAt(now + 10);
+        assertFalse(ArchivedTrip.isArchivable(t, now + 100, now + 10));
+        assertTrue(ArchivedTrip.isArchivable(t, Long.MIN_VALUE, now + 11));
+
+        ArchivedTrip archived = new ArchivedTrip(t, 42);
+        assertEquals("rider_" + t.getCreatedAt(), ArchivedTrip.historyID(t));
+        assertEquals("COMPLETED", archived.getStatus());
+        assertEquals(53.6, archived.getEndLatitude());
+        assertEquals(42, archived.getArchivedAt());
+    }
+
+    @Test
+    public void testTripRanking() {
+        UserLocation driver = new UserLocation(53.5, -113.5);
+        long now = 10 * 60000;
+        Trip near = new Trip("near", 10, new UserLocation(53.501, -113.5), driver, "a");
+        Trip far = new Trip("far", 10, new UserLocation(53.6, -113.5), driver, "b");
+        Trip rich = new Trip("rich", 60, new UserLocation(53.6, -113.5), driver, "c");
+        Trip waiting = new Trip("waiting", 10, new UserLocation(53.501, -113.5), driver, "d");
+        for (Trip t : Arrays.asList(near, far, rich)) {
+            t.setCreatedAt(now);
+        }
+        waiting.setCreatedAt(0);
+
+        // Only distance, fare or waiting time counts
+        assertEquals(Arrays.asList(near, far), new TripRanker(0, 1, 0, 0).top(Arrays.asList(far, near), driver, 2, now));
+        assertEquals(Arrays.asList(rich), new TripRanker(1, 0, 0, 0).top(Arrays.asList(near, rich, far), driver, 1, now));
+        assertEquals(Arrays.asList(waiting, near), new TripRanker(0, 0, 1, 30).top(Arrays.asList(near, waiting), driver, 2, now));
+        // The default ranks a much higher fare above a shorter pickup
+        List<Trip> ranked = TripRanker.DEFAULT.top(Arrays.asList(far, near, waiting, rich), driver, 3, now);
+        assertEquals(Arrays.asList(rich, waiting, near), ranked);
+        assertTrue(TripRanker.DEFAULT.top(ranked, driver, 0, now).isEmpty());
+
+        // The model list follows the order of the delta
+        ApplicationModel m = new ApplicationModel();
+        TripDelta delta = new TripDelta();
+        delta.upsert(near);
+        delta.upsert(rich);
+        m.applySessionTripDelta(delta);
+        delta = new TripDelta();
+        delta.upsert(waiting);
+        delta.setOrder(Arrays.asList("rich", "waiting", "near"));
+        m.applySessionTripDelta(delta);
+        List<String> ids = new ArrayList<>();
+        for (Trip t : m.getSessionTripList()) {
+            ids.add(t.getRiderID());
+        }
+        assertEquals(Arrays.asList("rich", "waiting", "near"), ids);
+    }
 }
@@ -0,0 +1,111 @@
+package com.ownmyway;
+
+import android.util.Log;
+
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripGrid;
+import com.ownmyway.model.UserLocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * Compares radius and nearest trip queries on a TripGrid against a scan of every trip, at 1k, 10k
+ * and 100k trips spread over a 60km square around Edmonton. Results are checked against the scan
+ * and timings are written to the log.
+ */
+public class TripGridBenchmark {
+    private static final String TAG = "In Trip Grid Benchmark";
+    private static final double CELL_SIZE_KM = 1.0;
+    private static final double RADIUS_KM = 6.0;
+    private static final int NEAREST = 20;
+    private static final int QUERIES = 200;
+
+    @Test
+    public void benchmarkQueries() {
+        for (int size : new int[] {1000, 10000, 100000}) {
+            benchmark(size);
+        }
+    }
+
+    private void benchmark(int size) {
+        Random random = new Random(size);
+        TripGrid grid = new TripGrid(CELL_SIZE_KM);
+        List<Trip> trips = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Trip trip = new Trip("rider" + i, 20, randomLocation(random), randomLocation(random), "user" + i);
+            trips.add(trip);
+            grid.put(trip);
+        }
+        List<UserLocation> centers = new ArrayList<>(QUERIES);
+        for (int i = 0; i < QUERIES; i++) {
+            centers.add(randomLocation(random));
+        }
+
+        // The index must find exactly what the scan finds
+        for (int i = 0; i < 10; i++) {
+            UserLocation center = centers.get(i);
+            assertEquals(ids(scanRadius(trips, center)), ids(grid.withinRadius(center, RADIUS_KM)));
+            List<Trip> nearest = grid.nearest(center, NEAREST, RADIUS_KM * 10);
+            assertEquals(NEAREST, nearest.size());
+            double farthest = center.haversineDistanceTo(nearest.get(NEAREST - 1).getStartUserLocation());
+            int closer = 0;
+            for (Trip trip : trips) {
+                if (center.haversineDistanceTo(trip.getStartUserLocation()) < farthest) {
+                    closer++;
+                }
+            }
+            assertEquals(true, closer < NEAREST);
+        }
+
+        long start = System.nanoTime();
+        for (UserLocation center : centers) {
+            scanRadius(trips, center);
+        }
+        long scanNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (UserLocation center : centers) {
+            grid.withinRadius(center, RADIUS_KM);
+        }
+        long radiusNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (UserLocation center : centers) {
+            grid.nearest(center, NEAREST, RADIUS_KM * 10);
+        }
+        long nearestNanos = System.nanoTime() - start;
+
+        Log.d(TAG, size + " trips: scan " + scanNanos / QUERIES / 1000 + " us, radius " +
+                radiusNanos / QUERIES / 1000 + " us, " + NEAREST + " nearest " +
+                nearestNanos / QUERIES / 1000 + " us per query");
+    }
+
+    private static List<Trip> scanRadius(List<Trip> trips, UserLocation center) {
+        List<Trip> found = new ArrayList<>();
+        for (Trip trip : trips) {
+            if (center.haversineDistanceTo(trip.getStartUserLocation()) <= RADIUS_KM) {
+                found.add(trip);
+            }
+        }
+        return found;
+    }
+
+    private static Set<String> ids(List<Trip> trips) {
+        Set<String> ids = new HashSet<>();
+        for (Trip trip : trips) {
+            ids.add(trip.getRiderID());
+        }
+        return ids;
+    }
+
+    private static UserLocation randomLocation(Random random) {
+        // About 60km by 60km
+        return new UserLocation(53.27 + random.nextDouble() * 0.54, -113.95 + random.nextDouble() * 0.9);
+    }
+}
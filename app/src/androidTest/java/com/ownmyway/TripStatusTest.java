@@ -0,0 +1,59 @@
+package com.ownmyway;
+
+import com.google.android.gms.tasks.Tasks;
+import com.ownmyway.db.DBManager;
+import com.ownmyway.db.InMemoryBackend;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.UserLocation;
+
+import org.junit.Test;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Moves a trip through a status transition on both storage backends, the way the session trip is
+ * moved with its driver, and checks what the backend stored. The Firebase test uses its own
+ * collections and deletes its trip afterwards.
+ */
+public class TripStatusTest {
+    private static final String RIDER_ID = "tripStatusTestRider";
+    private static final String DRIVER_ID = "tripStatusTestDriver";
+
+    @Test
+    public void testCompletedAtFirestore() throws Exception {
+        checkCompletedAt(new DBManager("TripStatusTestDrivers", "TripStatusTestRiders",
+                "TripStatusTestTrips", "TripStatusTestRoutes", "TripStatusTestHistory"));
+    }
+
+    @Test
+    public void testCompletedAtInMemory() throws Exception {
+        InMemoryBackend backend = new InMemoryBackend(0, 1);
+        try {
+            checkCompletedAt(new DBManager(backend));
+        } finally {
+            backend.shutdown();
+        }
+    }
+
+    /**
+     * Completing a trip with its driver given must record when it was completed
+     */
+    private static void checkCompletedAt(DBManager dbManager) throws Exception {
+        Trip trip = new Trip(RIDER_ID, 20, new UserLocation(53.5, -113.5),
+                new UserLocation(53.6, -113.4), "tripStatusTestUser");
+        trip.setDriverID(DRIVER_ID);
+        trip.setStatus(Trip.STATUS.EN_ROUTE);
+        Tasks.await(dbManager.createTrip(trip, false));
+        try {
+            Tasks.await(dbManager.updateTripStatus(RIDER_ID, Trip.STATUS.EN_ROUTE, Trip.STATUS.COMPLETED,
+                    DRIVER_ID, false));
+            Trip completed = Tasks.await(dbManager.getTrip(RIDER_ID, false));
+            assertEquals(Trip.STATUS.COMPLETED, completed.getStatus());
+            assertEquals(DRIVER_ID, completed.getDriverID());
+            assertTrue(completed.getCompletedAt() > 0);
+        } finally {
+            Tasks.await(dbManager.deleteTrip(RIDER_ID));
+        }
+    }
+}
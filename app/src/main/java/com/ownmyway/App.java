@@ -26,6 +26,8 @@ public class App extends Application {
     private static final String DRIVERS_COLLECTION_NAME = "Drivers";
     private static final String RIDERS_COLLECTION_NAME = "Riders";
     private static final String TRIPS_COLLECTION_NAME = "Trips";
+    private static final String TRIP_ROUTES_COLLECTION_NAME = "TripRoutes";
+    private static final String TRIP_HISTORY_COLLECTION_NAME = "TripHistory";
     transient private static ApplicationModel model;
     transient private static ApplicationController controller;
     transient private static AuthDBManager authDBManager;
@@ -56,6 +58,10 @@ public class App extends Application {
         if (model.getTripListener() != null) {
             model.getTripListener().remove();
         }
+        if (dbManager != null) {
+            dbManager.getQueryListeners().clear();
+            dbManager.getTripListeners().detachAll();
+        }
 
         model = null;
         controller = null;
@@ -103,7 +109,8 @@ public class App extends Application {
      */
     public static DBManager getDbManager() {
         if (dbManager == null) {
-            dbManager = new DBManager(DRIVERS_COLLECTION_NAME, RIDERS_COLLECTION_NAME, TRIPS_COLLECTION_NAME);
+            dbManager = new DBManager(DRIVERS_COLLECTION_NAME, RIDERS_COLLECTION_NAME, TRIPS_COLLECTION_NAME,
+                    TRIP_ROUTES_COLLECTION_NAME, TRIP_HISTORY_COLLECTION_NAME);
         }
 
         return dbManager;
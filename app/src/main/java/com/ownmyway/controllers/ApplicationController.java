@@ -5,18 +5,20 @@ import android.content.Intent;
 import android.widget.Toast;
 
 import com.ownmyway.App;
+import com.ownmyway.db.DBTasks;
 import com.ownmyway.model.ApplicationModel;
-import com.ownmyway.model.Driver;
-import com.ownmyway.model.Rider;
 import com.ownmyway.model.Trip;
 import com.ownmyway.model.User;
 import com.ownmyway.model.UserLocation;
 import com.ownmyway.services.ApplicationService;
+import com.ownmyway.services.TripDiscovery;
 import com.ownmyway.views.activities.LoginActivity;
 import com.ownmyway.views.activities.MainActivity;
 import com.ownmyway.views.activities.MapActivity;
 import com.ownmyway.views.activities.RatingActivity;
 import com.ownmyway.views.UIErrorHandler;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.firebase.firestore.ListenerRegistration;
 
 import java.util.List;
 import java.util.Objects;
@@ -58,16 +60,12 @@ public class ApplicationController {
                 firstName,
                 lastName,
                 email,
-                phoneNumber,
-                (resultData, err) -> {
-                    if (err != null) view.onError(err);
-                    else {
-                        User u = (User) resultData.get("user");
-                        model.setSessionUser(u);
-                        view.finish();
-                    }
-                }
-        );
+                phoneNumber)
+                .addOnSuccessListener(rider -> {
+                    model.setSessionUser(rider);
+                    view.finish();
+                })
+                .addOnFailureListener(e -> view.onError(DBTasks.toError(e)));
     }
     /**
      * Calls the  ApplicationService class to login a user. On success the listener gets
@@ -77,17 +75,15 @@ public class ApplicationController {
      * @param intent the activity that will open on successful login
      */
     public void login(String email, String password, User.TYPE type, LoginActivity view, Intent intent) {
-        ApplicationService.loginUser(email, password, type, (resultData, err) -> {
-            if (err != null) view.onError(err);
-            else {
-                User u = (User) resultData.get("user");
-                manageLoggedStateAcrossTwoUserCollections(true, u, type, view);
-                Toast.makeText(view.getApplicationContext(), "You are NOW logged in.", Toast.LENGTH_SHORT).show();
-                Objects.requireNonNull(u).setType(type);
-                model.setSessionUser(u);
-                ApplicationController.loadSessionTrip(intent, view);
-            }
-        });
+        ApplicationService.loginUser(email, password, type)
+                .addOnSuccessListener(u -> {
+                    manageLoggedStateAcrossTwoUserCollections(true, u, type, view);
+                    Toast.makeText(view.getApplicationContext(), "You are NOW logged in.", Toast.LENGTH_SHORT).show();
+                    Objects.requireNonNull(u).setType(type);
+                    model.setSessionUser(u);
+                    ApplicationController.loadSessionTrip(intent, view);
+                })
+                .addOnFailureListener(e -> view.onError(DBTasks.toError(e)));
     }
 
     /**
@@ -99,21 +95,18 @@ public class ApplicationController {
     public void createNewTrip(Trip tripRequest,
                               UIErrorHandler view,
                               CircularProgressButton submitTripBtn) {
-        ApplicationService.createNewTrip(tripRequest,
-                (resultData, err) -> {
-                    if (err != null) view.onError(err);
-                    else {
-                        Trip tripData =  (Trip) resultData.get("trip");
-                        model.setSessionTrip(tripData);
-                        view.finish();
-                        submitTripBtn.stopAnimation();
-                    }
-                }
-        );
+        ApplicationService.createNewTrip(tripRequest)
+                .addOnSuccessListener(tripData -> {
+                    model.setSessionTrip(tripData);
+                    view.finish();
+                    submitTripBtn.stopAnimation();
+                })
+                .addOnFailureListener(e -> view.onError(DBTasks.toError(e)));
     }
 
     /**
-     *  Updates the users location in the model and calls notifyObservers() in the ApplicationModel
+     *  Updates the users location in the model and calls notifyObservers() in the ApplicationModel.
+     *  The location is also published to Firebase, at a bounded rate.
      *  @param location the users new location
      */
     public void updateUserLocation(UserLocation location) {
@@ -121,22 +114,34 @@ public class ApplicationController {
         if (m.getSessionUser() !=  null) {
             m.getSessionUser().setCurrentUserLocation(location);
             m.notifyObservers();
+            ApplicationService.publishUserLocation(location);
         }
     }
 
     /**
-     *  Gets the all the trips for the user. And updates the model with the trip list.
+     *  Records the map area the driver is looking at, so trips can be searched for in it
+     *   @param bounds the visible map area
+     */
+    public static void updateTripSearchBounds(LatLngBounds bounds) {
+        App.getModel().setTripSearchBounds(bounds);
+    }
+
+    /**
+     *  Gets the trips nearest the user, or in the map area they looked at. And updates the model
+     *  with the trip list as more trips are loaded and trips change.
      *   @param view the UI Error Handler interface callback.
+     *   @return the discovery the view loads more trips with, and removes once it stops showing the trips
      */
-    public static void getTripsForUser(UIErrorHandler view) {
+    public static TripDiscovery getTripsForUser(UIErrorHandler view) {
         ApplicationModel m = App.getModel();
         UserLocation sessionUserLocation = m.getSessionUser().getCurrentUserLocation();
-        ApplicationService.getFilteredTrips(sessionUserLocation, (resultData, err) -> {
-            if (err != null && view != null) {
-                view.onError(err);
+        // Cleared until the first trips are delivered, which sets the list even if none were found
+        m.setSessionTripList(null);
+        return ApplicationService.getFilteredTrips(sessionUserLocation, m.getTripSearchBounds(), (delta, err) -> {
+            if (err != null) {
+                if (view != null) view.onError(err);
             } else {
-                List<Trip> sessionTripList = (List<Trip>) resultData.get("filtered-trips");
-                m.setSessionTripList(sessionTripList);
+                m.applySessionTripDelta(delta);
             }
         });
     }
@@ -144,14 +149,14 @@ public class ApplicationController {
     /**
      *  Gets the all the trips for the user. And updates the model with the trip list.
      *   @param view the UI Error Handler interface callback.
+     *   @return the registration the view removes once it stops showing the trips
      */
-    public static void getPendingTripsForDriver(UIErrorHandler view) {
+    public static ListenerRegistration getPendingTripsForDriver(UIErrorHandler view) {
         ApplicationModel m = App.getModel();
-        ApplicationService.getFilteredPendingTripsForDriver((resultData, err) -> {
-            if (err != null && view != null) {
-                view.onError(err);
+        return ApplicationService.getFilteredPendingTripsForDriver((driverAcceptedPendingRides, err) -> {
+            if (err != null) {
+                if (view != null) view.onError(err);
             } else {
-                List<Trip> driverAcceptedPendingRides = (List<Trip>) resultData.get("filtered-trips");
                 m.setDriverAcceptedPendingRides(driverAcceptedPendingRides);
             }
         });
@@ -164,17 +169,15 @@ public class ApplicationController {
      */
     public static void loadSessionTrip(Intent completionIntent, MainActivity view){
         ApplicationModel m = App.getModel();
-        ApplicationService.getSessionTripForUser((resultData, err) -> {
-            if (err != null) view.onError(err);
-            else {
-                if (resultData != null && resultData.containsKey("trip")) {
-                    Trip sessionTrip = (Trip) resultData.get("trip");
-                    m.setSessionTrip(sessionTrip);
-                }
-                view.startActivity(completionIntent);
-                view.finish();
-            }
-        });
+        ApplicationService.getSessionTripForUser()
+                .addOnSuccessListener(sessionTrip -> {
+                    if (sessionTrip != null) {
+                        m.setSessionTrip(sessionTrip);
+                    }
+                    view.startActivity(completionIntent);
+                    view.finish();
+                })
+                .addOnFailureListener(e -> view.onError(DBTasks.toError(e)));
     }
 
     /**
@@ -184,17 +187,15 @@ public class ApplicationController {
      */
     public static void loadSessionTrip(Intent completionIntent, LoginActivity view){
         ApplicationModel m = App.getModel();
-        ApplicationService.getSessionTripForUser((resultData, err) -> {
-            if (err != null) view.onError(err);
-            else {
-                if (resultData != null && resultData.containsKey("trip")) {
-                    Trip sessionTrip = (Trip) resultData.get("trip");
-                    m.setSessionTrip(sessionTrip);
-                }
-                view.startActivity(completionIntent);
-                view.finish();
-            }
-        });
+        ApplicationService.getSessionTripForUser()
+                .addOnSuccessListener(sessionTrip -> {
+                    if (sessionTrip != null) {
+                        m.setSessionTrip(sessionTrip);
+                    }
+                    view.startActivity(completionIntent);
+                    view.finish();
+                })
+                .addOnFailureListener(e -> view.onError(DBTasks.toError(e)));
     }
 
     /**
@@ -203,9 +204,19 @@ public class ApplicationController {
      */
     public static void deleteRiderCurrentTrip(UIErrorHandler view){
         ApplicationModel m = App.getModel();
-        ApplicationService.deleteCurrentTrip(m.getSessionTrip(), (resultData, err) -> {
-            if (err != null) view.onError(err);
-        });
+        ApplicationService.deleteCurrentTrip(m.getSessionTrip())
+                .addOnFailureListener(e -> view.onError(DBTasks.toError(e)));
+    }
+
+    /**
+     * Moves the paid for session trip to the trip history. The trip listener then sets the model
+     * session trip to null.
+     * @param view the UI Error Handler interface callback.
+     */
+    public static void archiveCurrentTrip(UIErrorHandler view){
+        ApplicationModel m = App.getModel();
+        ApplicationService.archiveCurrentTrip(m.getSessionTrip())
+                .addOnFailureListener(e -> view.onError(DBTasks.toError(e)));
     }
 
     /**
@@ -214,78 +225,39 @@ public class ApplicationController {
      */
     public static void handleDriverTripSelect(Trip selectedTrip) {
         ApplicationModel m = App.getModel();
-        selectedTrip.setStatus(Trip.STATUS.DRIVER_ACCEPT);
-        String userId = App.getAuthDBManager().getCurrentUserID();
-        selectedTrip.setDriverID(userId);
-        ApplicationService.selectTrip(selectedTrip.getRiderID(), selectedTrip, ((resultData, err) -> {
-            if (err != null) {
-                List<Observer> mapObservers = m.getObserversMatchingClass(MapActivity.class);
-                for (Observer map : mapObservers) {
-                    ((UIErrorHandler) map).onError(err);
-                }
-            } else {
-                // Edge case: don't override current active trip if there is one
-                if (m.getSessionTrip() == null) {
-                    m.setSessionTrip(selectedTrip);
-                    m.setSessionTripList(null);
-                }
-            }
-        }));
+        ApplicationService.selectTrip(selectedTrip.getRiderID())
+                .addOnSuccessListener(acceptedTrip -> {
+                    // Edge case: don't override current active trip if there is one
+                    if (m.getSessionTrip() == null) {
+                        m.setSessionTrip(acceptedTrip);
+                        m.setSessionTripList(null);
+                    }
+                })
+                .addOnFailureListener(ApplicationController::reportToMaps);
     }
 
     /** Controls what happens after rider accept ride offer **/
     public static void handleNotifyDriverForPickup() {
-        Trip currentTrip = App.getModel().getSessionTrip();
-        ApplicationService.notifyDriverForPickup(currentTrip.getRiderID(), currentTrip, ((resultData, err) -> {
-            if (err != null) {
-                List<Observer> mapObservers = App.getModel().getObserversMatchingClass(MapActivity.class);
-                for (Observer map : mapObservers) {
-                    ((UIErrorHandler) map).onError(err);
-                }
-            }
-        }));
+        ApplicationService.notifyDriverForPickup()
+                .addOnFailureListener(ApplicationController::reportToMaps);
     }
 
     /** Controls what happens after rider accepts thr ride offer **/
     public static void handleNotifyRiderForPickup() {
-        Trip currentTrip = App.getModel().getSessionTrip();
-        ApplicationService.notifyRiderForPickup(currentTrip.getRiderID(), currentTrip, ((resultData, err) -> {
-            if (err != null) {
-                List<Observer> mapObservers = App.getModel().getObserversMatchingClass(MapActivity.class);
-                for (Observer map : mapObservers) {
-                    ((UIErrorHandler) map).onError(err);
-                }
-            }
-        }));
+        ApplicationService.notifyRiderForPickup()
+                .addOnFailureListener(ApplicationController::reportToMaps);
     }
 
     /** Controls what happens after rider accept ride offer **/
     public static void beginTrip() {
-        Trip currentTrip = App.getModel().getSessionTrip();
-        currentTrip.setStatus(Trip.STATUS.EN_ROUTE);
-        ApplicationService.beginTrip(currentTrip.getRiderID(), currentTrip, ((resultData, err) -> {
-            if (err != null) {
-                List<Observer> mapObservers = App.getModel().getObserversMatchingClass(MapActivity.class);
-                for (Observer map : mapObservers) {
-                    ((UIErrorHandler) map).onError(err);
-                }
-            } else {
-                App.getModel().setSessionTrip(currentTrip);
-            }
-        }));
+        ApplicationService.beginTrip()
+                .addOnFailureListener(ApplicationController::reportToMaps);
     }
 
     /** Complete trip **/
     public static void completeTrip() {
-        Trip currentTrip = App.getModel().getSessionTrip();
-        ApplicationService.completeTrip(currentTrip.getRiderID(), currentTrip, ((resultData, err) -> {
-            if (err != null) {
-                List<Observer> mapObservers = App.getModel().getObserversMatchingClass(MapActivity.class);
-                for (Observer map : mapObservers) {
-                    ((UIErrorHandler) map).onError(err);
-                }
-            }
-        }));
+        ApplicationService.completeTrip()
+                .addOnFailureListener(ApplicationController::reportToMaps);
     }
 
     /**
@@ -301,14 +273,11 @@ public class ApplicationController {
         ApplicationService.manageLoggedStateAcrossTwoUserCollections(
                 loggingIn,
                 updatedSessionUser,
-                userType,
-                ((resultData, err) -> {
-                    if (err == null) {
-                        App.getModel().setSessionUser(updatedSessionUser);
-                        view.finish();
-                    }  // TODO: Handle Errors
-
-                }));
+                userType)
+                .addOnSuccessListener(aVoid -> {
+                    App.getModel().setSessionUser(updatedSessionUser);
+                    view.finish();
+                });  // TODO: Handle Errors
     }
 
     /**Used to update non critical user fields (ie. username, first/last name, phone number) when
@@ -316,13 +285,8 @@ public class ApplicationController {
      * @param updatedSessionUser is the new updated user object
      */
     public static void editAccountUpdate(User updatedSessionUser, User.TYPE userType){
-            ApplicationService.updateUser(updatedSessionUser, userType, ((resultData, err) -> {
-                if (err == null) {
-                    App.getModel().setSessionUser(updatedSessionUser);
-                }  // TODO: Handle Errors
-
-            }));
-
+        ApplicationService.updateUser(updatedSessionUser, userType)
+                .addOnSuccessListener(aVoid -> App.getModel().setSessionUser(updatedSessionUser));  // TODO: Handle Errors
     }
 
     /**
@@ -333,52 +297,39 @@ public class ApplicationController {
      * @param giveThumbsUp  boolean for if thumbs up was pressed or not
      */
     public static void updateDriverRating(RatingActivity view, String driverID, boolean giveThumbsUp){
-        App.getDbManager().getDriver(driverID, ((resultData, err) -> {
-            if (err == null) {
-                Driver tmpDriver = (Driver) resultData.get("user");
-                if(giveThumbsUp){
-                    Objects.requireNonNull(tmpDriver).setNumThumbsUp(tmpDriver.getNumThumbsUp() + 1);
-                }
-                else{
-                    Objects.requireNonNull(tmpDriver).setNumThumbsDown(tmpDriver.getNumThumbsDown()+1);
-                }
-                //Rating algorithm
-                tmpDriver.setRating((tmpDriver.getNumThumbsUp() / (tmpDriver.getNumThumbsDown() +
-                        tmpDriver.getNumThumbsUp())) * 100);
-                App.getDbManager().updateDriver(driverID,tmpDriver, (resultData1, err1) -> {
-                    if (err1 != null) {
-                        view.finish();
-                    }
-                });
-            }
-
-        }));
+        App.getDbManager().submitDriverRating(driverID, giveThumbsUp)
+                .addOnFailureListener(e -> view.finish());
     }
 
     public static void handleViewContactInformation(Activity view, Intent contactIntent, String riderID, String driverID) {
         if (App.getModel().getSessionUser().getType() == RIDER) {
-            App.getDbManager().getDriver(driverID, ((resultData, err) -> {
-                if (err == null) {
-                    Driver d = (Driver) resultData.get("user");
-                    contactIntent.putExtra("ID", Objects.requireNonNull(d).getDocID());
-                    contactIntent.putExtra("username", d.getUsername());
-                    contactIntent.putExtra("email", d.getAccount().getEmail());
-                    contactIntent.putExtra("phoneNumber", d.getAccount().getPhoneNumber());
-                    view.startActivity(contactIntent);
-                }
-
-            }));
+            App.getDbManager().getCachedDriver(driverID).addOnSuccessListener(d -> {
+                contactIntent.putExtra("ID", Objects.requireNonNull(d).getDocID());
+                contactIntent.putExtra("username", d.getUsername());
+                contactIntent.putExtra("email", d.getAccount().getEmail());
+                contactIntent.putExtra("phoneNumber", d.getAccount().getPhoneNumber());
+                view.startActivity(contactIntent);
+            });
         } else {
-            App.getDbManager().getRider(riderID, ((resultData, err) -> {
-                if (err == null) {
-                    Rider r = (Rider) resultData.get("user");
-                    contactIntent.putExtra("ID", Objects.requireNonNull(r).getDocID());
-                    contactIntent.putExtra("username", r.getUsername());
-                    contactIntent.putExtra("email", r.getAccount().getEmail());
-                    contactIntent.putExtra("phoneNumber", r.getAccount().getPhoneNumber());
-                    view.startActivity(contactIntent);
-                }
-            }));
+            App.getDbManager().getCachedRider(riderID).addOnSuccessListener(r -> {
+                contactIntent.putExtra("ID", Objects.requireNonNull(r).getDocID());
+                contactIntent.putExtra("username", r.getUsername());
+                contactIntent.putExtra("email", r.getAccount().getEmail());
+                contactIntent.putExtra("phoneNumber", r.getAccount().getPhoneNumber());
+                view.startActivity(contactIntent);
+            });
+        }
+    }
+
+    /**
+     * Sends a failed request's error to every map view observing the model
+     * @param e the exception the request failed with
+     */
+    private static void reportToMaps(Exception e) {
+        Error err = DBTasks.toError(e);
+        List<Observer> mapObservers = App.getModel().getObserversMatchingClass(MapActivity.class);
+        for (Observer map : mapObservers) {
+            ((UIErrorHandler) map).onError(err);
         }
     }
 }
@@ -1,17 +1,17 @@
 package com.ownmyway.controllers;
 
-import java.util.HashMap;
-
 /**
  * Interface used to properly deal with an asynchronous MVC architecture. Provides the ability
- * for asynchronous code to call elsewhere in the codebase passing result data via the resultData
- * hashmap, and supports error handling via the 'err' parameter.
+ * for asynchronous code that reports more than once, such as a live query, to call elsewhere in
+ * the codebase passing a typed result, and supports error handling via the 'err' parameter.
+ * One-shot calls return a Task instead.
+ * @param <T> the type of the result
  */
-public interface EventCompletionListener {
+public interface EventCompletionListener<T> {
     /**
      * When the event is complete overrider this method
-     * @param resultData is a hashmap entry with any type associated with it
+     * @param result the result of the event, null on error
      * @param err can take in an error
      * */
-    void onCompletion(HashMap<String, ?> resultData, Error err);
+    void onCompletion(T result, Error err);
 }
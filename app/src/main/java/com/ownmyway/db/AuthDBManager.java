@@ -5,13 +5,13 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import com.ownmyway.App;
-import com.ownmyway.controllers.EventCompletionListener;
-import com.ownmyway.model.Driver;
+import com.ownmyway.model.User;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.auth.AuthResult;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 
-import java.util.HashMap;
 import java.util.Objects;
 
 /**
@@ -29,22 +29,18 @@ public class AuthDBManager {
     }
 
     /**
-     * Queries for a user's email/password match already in Fb. On success the listener returns the
-     * document id of the user that logged in. On failure the listener returns the exception
+     * Queries for a user's email/password match already in Fb. On success the task returns the
+     * document id of the user that logged in. On failure the task fails with the exception
      * @param email that the user enters
      * @param password Current User's entered email and password
+     * @return the task that completes once the Firebase call ends
      */
-    public void signIn(String email, String password, EventCompletionListener listener) {
-        mAuth.signInWithEmailAndPassword(email, password)
-                .addOnSuccessListener((AuthResult authResult) -> {
+    public Task<String> signIn(String email, String password) {
+        return mAuth.signInWithEmailAndPassword(email, password)
+                .addOnFailureListener((@NonNull Exception e) -> Log.d(TAG, "Sign In Failed", e))
+                .onSuccessTask((AuthResult authResult) -> {
                     FirebaseUser fbUser = authResult.getUser();
-                    HashMap<String, String> toReturn = new HashMap<>();
-                    toReturn.put("doc-id", Objects.requireNonNull(fbUser).getUid());
-                    listener.onCompletion(toReturn, null);
-                })
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, "Sign In Failed", e);
-                    listener.onCompletion(null, new Error(e.getMessage()));
+                    return Tasks.forResult(Objects.requireNonNull(fbUser).getUid());
                 });
     }
 
@@ -56,22 +52,18 @@ public class AuthDBManager {
     }
 
     /**
-     * Creates a new user with the entered email and password. On success the listener returns the
-     * document id of the user that logged in. On failure the listener returns the exception
+     * Creates a new user with the entered email and password. On success the task returns the
+     * document id of the user that logged in. On failure the task fails with the exception
      * @param email that the user enters
      * @param password New User's entered email and password
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
+     * @return the task that completes once the Firebase call ends
      */
-    public void createFirebaseUser(String email, String password, EventCompletionListener listener) {
-        mAuth.createUserWithEmailAndPassword(email, password)
-                .addOnSuccessListener((AuthResult authResult) -> {
+    public Task<String> createFirebaseUser(String email, String password) {
+        return mAuth.createUserWithEmailAndPassword(email, password)
+                .onSuccessTask((AuthResult authResult) -> {
                     Log.d(TAG, "Firebase User Created ");
-                    HashMap<String, String> toReturn = new HashMap<>();
-                    toReturn.put("doc-id", Objects.requireNonNull(authResult.getUser()).getUid());
-                    listener.onCompletion(toReturn, null);
-
-                })
-                .addOnFailureListener((@NonNull Exception e) -> listener.onCompletion(null, new Error(e.getMessage())));
+                    return Tasks.forResult(Objects.requireNonNull(authResult.getUser()).getUid());
+                });
     }
 
 
@@ -82,34 +74,24 @@ public class AuthDBManager {
 
     /**
      * Retrieves the session user object from the Firebase collection if the user is currently logged in
-     * On success the lister returns a driver object or a rider object. On failure the listener returns the exception
-     * @param listener the listener that waits for the asynchronous Firebase call to finish.
+     * On success the task returns a driver object or a rider object, or null if no user is logged in.
+     * On failure the task fails with the exception
+     * @return the task that completes once the Firebase calls end
      */
-    public void getCurrentSessionUser(EventCompletionListener listener) {
-        if (isLoggedIn()) {
-            String uid = App.getAuthDBManager().getCurrentUserID();
-            Log.d("UID",uid);
-
-            App.getDbManager().getDriver(uid, ((resultData, err) -> {
-                if (err != null) {
-                    listener.onCompletion(null, err);
-                } else {
-                    Driver driverProfile = (Driver) resultData.get("user");
-                    if (driverProfile != null && driverProfile.getDriverLoggedOn()) {
-                        listener.onCompletion(resultData, null);
-                    } else {
-                        // Get the rider
-                        App.getDbManager().getRider(uid, (resultData1, err1) -> {
-                            if (err1 != null) listener.onCompletion(null, err1);
-                            else {
-                                listener.onCompletion(resultData1, null);
-                            }
-                        });
-
-                    }
-                }
-            }));
+    public Task<User> getCurrentSessionUser() {
+        if (!isLoggedIn()) {
+            return Tasks.forResult(null);
         }
+        String uid = App.getAuthDBManager().getCurrentUserID();
+        Log.d("UID",uid);
+
+        return App.getDbManager().getDriver(uid).onSuccessTask(driverProfile -> {
+            if (driverProfile != null && driverProfile.getDriverLoggedOn()) {
+                return Tasks.<User>forResult(driverProfile);
+            }
+            // Get the rider
+            return App.getDbManager().getRider(uid).onSuccessTask(rider -> Tasks.<User>forResult(rider));
+        });
     }
 
 
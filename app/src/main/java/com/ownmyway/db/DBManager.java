@@ -2,341 +2,558 @@ package com.ownmyway.db;
 
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
 import com.ownmyway.App;
-import com.ownmyway.controllers.EventCompletionListener;
 import com.ownmyway.model.Driver;
+import com.ownmyway.model.GeoHash;
 import com.ownmyway.model.Rider;
 import com.ownmyway.model.Trip;
-import com.google.firebase.firestore.CollectionReference;
-import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.FirebaseFirestore;
+import com.ownmyway.model.User;
+import com.ownmyway.model.UserLocation;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.ListenerRegistration;
-import com.google.firebase.firestore.SetOptions;
 
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Objects;
 
 /**
  * Repository for accessing firebase. Used to perform CRUD (Create, Read, Update Destroy) on
- * our Firebase collections. Uses listeners to handle asynchronous reads/writes to Firebase.
+ * our Firebase collections. One-shot reads/writes return a typed Task, live queries take a listener.
+ * The storage itself is done by a StorageBackend, Firestore unless another backend is passed in.
  */
 public class DBManager {
 
     private static final String TAG = "In Database Manager";
 
-    private CollectionReference collectionDriver, collectionRider, collectionTrip;
+    /** Error message returned when a driver tries to accept a trip that is no longer pending */
+    public static final String TRIP_ALREADY_TAKEN = "This trip has already been taken by another driver.";
+
+    private static final int USER_CACHE_SIZE = 32;
+    private static final long USER_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+
+    /** Key prefix of cache-first reads, which must not be handed to callers that want a server read */
+    private static final String CACHE_FIRST = "cache/";
+
+    private static final String LOGIN_FAILED = "Login failed. Please try again," +
+            "if the issue persists, close and restart the app.";
+
+    private final StorageBackend backend;
+
+    private final QueryListenerRegistry queryListeners = new QueryListenerRegistry();
+    private final TripListenerManager tripListeners;
+    private final TripArchiver archiver;
+    private final UserCache<Rider> riderCache =
+            new UserCache<>(USER_CACHE_SIZE, USER_CACHE_TTL_MILLIS, Profiles::copyRider);
+    private final UserCache<Driver> driverCache =
+            new UserCache<>(USER_CACHE_SIZE, USER_CACHE_TTL_MILLIS, Profiles::copyDriver);
+    private final SingleFlight<Rider> riderReads = new SingleFlight<>();
+    private final SingleFlight<Driver> driverReads = new SingleFlight<>();
+    private final SingleFlight<Trip> tripReads = new SingleFlight<>();
 
     /**constructs DBManager*/
     public DBManager(String driverCollectionName,
                      String riderCollectionName,
-                     String tripCollectionName) {
+                     String tripCollectionName,
+                     String routeCollectionName,
+                     String historyCollectionName) {
         // Database connection
-        FirebaseFirestore database = FirebaseFirestore.getInstance();
-        collectionDriver = database.collection(driverCollectionName);
-        collectionRider = database.collection(riderCollectionName);
-        collectionTrip = database.collection(tripCollectionName);
+        this(new FirestoreBackend(driverCollectionName, riderCollectionName, tripCollectionName,
+                routeCollectionName, historyCollectionName));
+    }
+
+    /**
+     * Constructs a DBManager on another storage backend, such as an InMemoryBackend for load tests
+     * @param backend the backend every read, write and listener goes to
+     */
+    public DBManager(StorageBackend backend) {
+        this.backend = backend;
+        tripListeners = new TripListenerManager(backend);
+        archiver = new TripArchiver(backend);
     }
 
     /* CREATE */
     /**
-     * Create a rider document in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will get the rider object.
+     * Create a rider document in Firebase. If it was not successful the task fails with a message
+     * that can be shown to the user. If it was successful, the task returns the rider object.
      * NOTE: The docID passed in is the same as the one used when a Firebase Authentication account was created
      * @param docID the doc id of the user
      * @param rider an object of type rider
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void createRider(String docID, Rider rider, EventCompletionListener listener) {
-        collectionRider.document(docID).set(rider)
-                .addOnSuccessListener(aVoid -> {
-                    HashMap<String, Rider> toReturn = new HashMap<>();
-                    toReturn.put("user", rider);
-                    listener.onCompletion(toReturn, null);
-                })
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    listener.onCompletion(null, new Error("Login failed. Please try again," +
-                            "if the issue persists, close and restart the app."));
-                });
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Rider> createRider(String docID, Rider rider) {
+        invalidateRider(docID);
+        return DBTasks.withErrorMessage(invalidateAfter(backend.setRider(docID, rider, false), () -> invalidateRider(docID)), LOGIN_FAILED)
+                .onSuccessTask(aVoid -> Tasks.forResult(rider));
     }
     /**
-     * Create a driver document in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will pass get driver object
+     * Create a driver document in Firebase. If it was not successful the task fails with a message
+     * that can be shown to the user. If it was successful, the task returns the driver object.
      * NOTE: The docID passed in is the same as the one used when a Firebase Authentication account was created
      * @param docID the doc id of the user
      * @param driver an object of type driver
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void createDriver(String docID, Driver driver, EventCompletionListener listener) {
-        collectionDriver.document(docID).set(driver)
-                .addOnSuccessListener(documentReference -> {
-                    HashMap<String, Driver> toReturn = new HashMap<>();
-                    toReturn.put("user", driver);
-                    listener.onCompletion(toReturn, null);
-                }).addOnFailureListener((@NonNull Exception e) -> {
-            Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-            listener.onCompletion(null, new Error("Login failed. Please try again," +
-                    "if the issue persists, close and restart the app."));
-        });
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Driver> createDriver(String docID, Driver driver) {
+        invalidateDriver(docID);
+        return DBTasks.withErrorMessage(invalidateAfter(backend.setDriver(docID, driver, false), () -> invalidateDriver(docID)), LOGIN_FAILED)
+                .onSuccessTask(aVoid -> Tasks.forResult(driver));
     }
 
     /**
-     * Create a Trip document in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will get the updates
+     * Create the rider and driver documents of a new user in a single batched write, so either both
+     * profiles exist or neither does. If it was not successful the task fails with a message that can
+     * be shown to the user. If it was successful, the task returns the rider object.
+     * NOTE: The docID passed in is the same as the one used when a Firebase Authentication account was created
+     * @param docID the doc id of the user
+     * @param rider the rider profile of the user
+     * @param driver the driver profile of the user
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Rider> createUserProfiles(String docID, Rider rider, Driver driver) {
+        invalidateRider(docID);
+        invalidateDriver(docID);
+        return DBTasks.withErrorMessage(invalidateAfter(backend.setUserProfiles(docID, rider, driver), () -> {
+                    invalidateRider(docID);
+                    invalidateDriver(docID);
+                }), LOGIN_FAILED)
+                .onSuccessTask(aVoid -> Tasks.forResult(rider));
+    }
+
+    /**
+     * Create a Trip document in Firebase. If it was not successful the task fails with a message
+     * that can be shown to the user. If it was successful, the task returns the trip object.
      * @param tripRequest the Trip object
-     * @param listener  the listener that waits for the asynchronous Firebase call to finish
      * @param listenForUpdates  adds a snapshot listener if true
+     * @return the task that completes once the Firebase call ends
      */
-    public void createTrip(Trip tripRequest, EventCompletionListener listener, boolean listenForUpdates) {
-        collectionTrip
-                .document(tripRequest.getRiderID())
-                .set(tripRequest)
-                .addOnSuccessListener(documentReference -> {
-                    HashMap<String, Trip> toReturn = new HashMap<>();
-                    toReturn.put("trip", tripRequest);
-                    listener.onCompletion(toReturn, null);
+    public Task<Trip> createTrip(Trip tripRequest, boolean listenForUpdates) {
+        tripReads.forget(tripRequest.getRiderID());
+        return DBTasks.withErrorMessage(backend.setTrip(tripRequest.getRiderID(), tripRequest, false), "Could not submit trip request.")
+                .onSuccessTask(aVoid -> {
                     if (listenForUpdates) {
-                        ListenerRegistration lr =
-                        collectionTrip
-                                .document(tripRequest.getRiderID())
-                                .addSnapshotListener((documentSnapshot, e) -> App.getModel().handleTripStatusChanges(tripRequest.getRiderID(), documentSnapshot));
-                       App.getModel().setTripListener(lr);
+                        App.getModel().setTripListener(tripListeners.watchSessionTrip(tripRequest.getRiderID()));
                     }
-                })
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    listener.onCompletion(null, new Error("Could not submit trip request."));
+                    return Tasks.forResult(tripRequest);
                 });
     }
 
 
     /* GET */
     /**
-     * Get a rider object from Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will pass the rider object from Firebase to the listener.
+     * Get a rider object from Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user. If it was successful, the task returns the rider object from Firebase,
+     * or null if there is none. The rider is always read from the server and then cached. Callers
+     * asking for the same rider while it is being read share that read.
      * NOTE: The docID passed in is the same as the one used when a Firebase Authentication account was created
      * @param docID the doc id of the user
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void getRider(String docID, EventCompletionListener listener) {
-        try {
-            collectionRider.document(docID)
-                    .get().addOnSuccessListener(documentSnapshot -> {
-                HashMap<String, Rider> toReturn = new HashMap<>();
-                toReturn.put("user", documentSnapshot.toObject(Rider.class));
-                listener.onCompletion(toReturn,null);
-            }).addOnFailureListener((@NonNull Exception e) -> {
-                Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                listener.onCompletion(null, new Error("Login failed. Please try again," +
-                        "if the issue persists, close and restart the app."));
-            });
-        } catch (Exception e) {
-            Log.d(TAG, Objects.requireNonNull(e.getMessage()));
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Rider> getRider(String docID) {
+        return riderReads.run(docID, () -> DBTasks.withErrorMessage(backend.getRider(docID, false), LOGIN_FAILED),
+                rider -> riderCache.put(docID, rider));
+    }
+    /**
+     * Get a rider object for display. The rider is served from memory if it was read recently, then
+     * from Firebase's local cache, and only read from the server if neither has it. A read of the
+     * rider already in flight is joined instead. Use getRider when the profile is about to be changed.
+     * @param docID the doc id of the user
+     * @return the task that completes once the rider is found
+     */
+    public Task<Rider> getCachedRider(String docID) {
+        Rider cached = riderCache.get(docID);
+        if (cached != null) {
+            return Tasks.forResult(cached);
         }
-
+        Task<Rider> serverRead = riderReads.get(docID);
+        if (serverRead != null) {
+            return serverRead;
+        }
+        return riderReads.run(CACHE_FIRST + docID, () -> DBTasks.withErrorMessage(backend.getRider(docID, true), LOGIN_FAILED),
+                rider -> riderCache.put(docID, rider));
     }
     /**
-     * Get a driver object from Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will pass the driver object from Firebase to the listener.
+     * Get a driver object from Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user. If it was successful, the task returns the driver object from Firebase,
+     * or null if there is none. The driver is always read from the server and then cached. Callers
+     * asking for the same driver while it is being read share that read.
      * NOTE: The docID passed in is the same as the one used when a Firebase Authentication account was created
      * @param docID the doc id of the user
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void getDriver(String docID, EventCompletionListener listener) {
-        collectionDriver
-                .document(docID)
-                .get()
-                .addOnSuccessListener(documentSnapshot -> {
-                    HashMap<String, Driver> toReturn = new HashMap<>();
-                    toReturn.put("user", documentSnapshot.toObject(Driver.class));
-                    listener.onCompletion(toReturn, null);
-                    })
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    listener.onCompletion(null, new Error("Login failed. Please try again," +
-                            "if the issue persists, close and restart the app."));
-                });
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Driver> getDriver(String docID) {
+        return driverReads.run(docID, () -> DBTasks.withErrorMessage(backend.getDriver(docID, false), LOGIN_FAILED),
+                driver -> driverCache.put(docID, driver));
     }
     /**
-     * Get a Trip object from Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will pass the trip object from Firebase to the listener.
+     * Get a driver object for display. The driver is served from memory if it was read recently, then
+     * from Firebase's local cache, and only read from the server if neither has it. A read of the
+     * driver already in flight is joined instead. Use getDriver when the profile is about to be changed.
      * @param docID the doc id of the user
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void getTrip(String docID, EventCompletionListener listener, boolean listenForUpdates) {
-        collectionTrip.document(docID)
-                .get().addOnSuccessListener(documentSnapshot -> {
-            HashMap<String, Trip> toReturn = new HashMap<>();
-            Trip t = documentSnapshot.toObject(Trip.class);
-            toReturn.put("trip", t);
-
-            if (listenForUpdates && t != null) {
-                ListenerRegistration lr =
-                collectionTrip
-                        .document(t.getRiderID())
-                        .addSnapshotListener((documentSnapshot1, e) ->
-                            App.getModel().handleTripStatusChanges(t.getRiderID(), documentSnapshot1)
-                        );
-                App.getModel().setTripListener(lr);
-            }
+     * @return the task that completes once the driver is found
+     */
+    public Task<Driver> getCachedDriver(String docID) {
+        Driver cached = driverCache.get(docID);
+        if (cached != null) {
+            return Tasks.forResult(cached);
+        }
+        Task<Driver> serverRead = driverReads.get(docID);
+        if (serverRead != null) {
+            return serverRead;
+        }
+        return driverReads.run(CACHE_FIRST + docID, () -> DBTasks.withErrorMessage(backend.getDriver(docID, true), LOGIN_FAILED),
+                driver -> driverCache.put(docID, driver));
+    }
 
-            listener.onCompletion(toReturn, null);
-        }).addOnFailureListener((@NonNull Exception e) -> {
-            Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-            listener.onCompletion(null, new Error("Login failed. Please try again," +
-                    "if the issue persists, close and restart the app."));
-        });
+    /**
+     * Runs an invalidation again once a write completes. A read that started before the write
+     * committed may return the profile as it was before, dropping it then keeps that out of the cache.
+     */
+    private static <T> Task<T> invalidateAfter(Task<T> write, Runnable invalidate) {
+        // Runs on the thread that completes the write, before the listeners of the caller
+        write.addOnCompleteListener(Runnable::run, task -> invalidate.run());
+        return write;
     }
+
     /**
-     * Get all trip objects from Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will pass all the objects from Firebase to the listener in the form of a list.
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void getTrips(EventCompletionListener listener) {
-        collectionTrip.get().addOnSuccessListener(queryDocumentSnapshots -> {
-            List<DocumentSnapshot> data = queryDocumentSnapshots.getDocuments();
-            HashMap<String, List<Trip>> toReturn = new HashMap<>();
-            List<Trip> tripData = new LinkedList<>();
-            for (DocumentSnapshot snapshot : data) {
-                tripData.add(snapshot.toObject(Trip.class));
-            }
-            toReturn.put("all-trips", tripData);
-
-            collectionTrip.addSnapshotListener(
-                (queryDocumentSnapshots1, e) -> {
-                    if (queryDocumentSnapshots1 != null) {
-                        tripData.clear();
-                        toReturn.clear();
-                        for (DocumentSnapshot snapshot : queryDocumentSnapshots1) {
-                            tripData.add(snapshot.toObject(Trip.class));
-                        }
-                        toReturn.put("all-trips", tripData);
-                        listener.onCompletion(toReturn, null);
+     * Drops a rider from the reads in flight and from the cache, called before and after every write to it.
+     * The reads are forgotten first, so none of them caches the rider after it was dropped.
+     */
+    private void invalidateRider(String docID) {
+        riderReads.forget(docID);
+        riderReads.forget(CACHE_FIRST + docID);
+        riderCache.invalidate(docID);
+    }
+
+    /**
+     * Drops a driver from the reads in flight and from the cache, called before and after every write to it.
+     * The reads are forgotten first, so none of them caches the driver after it was dropped.
+     */
+    private void invalidateDriver(String docID) {
+        driverReads.forget(docID);
+        driverReads.forget(CACHE_FIRST + docID);
+        driverCache.invalidate(docID);
+    }
+    /**
+     * Get a Trip object from Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user. If it was successful, the task returns the trip object from Firebase,
+     * or null if there is none. Callers asking for the same trip while it is being read share that read.
+     * @param docID the doc id of the trip
+     * @param listenForUpdates adds a snapshot listener if true and the trip exists
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Trip> getTrip(String docID, boolean listenForUpdates) {
+        return tripReads.run(docID, () -> DBTasks.withErrorMessage(backend.getTrip(docID), LOGIN_FAILED))
+                .onSuccessTask(t -> {
+                    if (listenForUpdates && t != null) {
+                        App.getModel().setTripListener(tripListeners.watchSessionTrip(t.getRiderID()));
                     }
+                    return Tasks.forResult(t);
                 });
+    }
+    /**
+     * Get all trip objects from Firebase. If it was not successful the listener passed in will handel the exception.
+     * If it was successful, the listener passed in first gets every trip and is then called with only
+     * the trips that changed, until the returned registration is removed.
+     * @param listener the listener that receives the trip changes
+     * @return the registration to remove once the caller no longer needs updates
+     */
+    public ListenerRegistration getTrips(TripFeedListener listener) {
+        return queryListeners.subscribe("trips/all", backend::listenAllTrips, (delta, e) -> {
+            if (e != null) {
+                Log.d(TAG, Objects.requireNonNull(e.getMessage()));
+                listener.onTripDelta(null, new Error("Could not find trips"));
+            } else {
+                listener.onTripDelta(delta, null);
+            }
+        });
+    }
+
+    /**
+     * Page through the pending trips whose start location is near the center, without reading the
+     * whole Trips collection. Only the geohash cells covering the radius are queried, closest cell
+     * first, so the result may include trips slightly outside the radius; callers are expected to
+     * filter by exact distance. The listener first gets the trips of the first page and is then
+     * called with the trips of every page loaded later and with the trips that changed, until the
+     * returned pager is removed.
+     * @param center the center of the search
+     * @param radiusKm the search radius in kilometers
+     * @param pageSize the number of trips read per page
+     * @param listener the listener that receives the trip changes
+     * @return the pager used to load more trips and to remove the listeners
+     */
+    public TripPager pageTripsNear(UserLocation center, double radiusKm, int pageSize, TripFeedListener listener) {
+        return new TripPager(backend, GeoHash.coveringCells(center, radiusKm), pageSize, listener);
+    }
+
+    /**
+     * Get the trips a driver has accepted and not yet arrived at, ordered by their position in the
+     * driver's queue. Firebase does the filtering, so only the driver's own trips are read.
+     * The listener first gets every queued trip and is then called with only the trips that
+     * changed, until the returned registration is removed.
+     * @param driverID the doc id of the driver
+     * @param listener the listener that receives the trip changes
+     * @return the registration to remove once the caller no longer needs updates
+     */
+    public ListenerRegistration getDriverQueue(String driverID, TripFeedListener listener) {
+        QueryListenerRegistry.Attacher queueQuery = queueListener -> backend.listenDriverQueue(driverID, queueListener);
+        return queryListeners.subscribe("trips/queue/" + driverID, queueQuery, (delta, e) -> {
+            if (e != null) {
+                Log.d(TAG, Objects.requireNonNull(e.getMessage()));
+                listener.onTripDelta(null, new Error("Could not find trips"));
+            } else {
+                listener.onTripDelta(delta, null);
+            }
+        });
+    }
 
-            listener.onCompletion(toReturn, null);
-        }).addOnFailureListener(e -> listener.onCompletion(null, new Error(e.getMessage())));
+    /**
+     * Get the manager that owns the listeners on single trip documents
+     */
+    public TripListenerManager getTripListeners() {
+        return tripListeners;
+    }
+
+    /**
+     * Drops every cached rider and driver profile, used when the user logs out
+     */
+    public void clearUserCache() {
+        riderCache.clear();
+        driverCache.clear();
+    }
+
+    /**
+     * Get the registry that owns the shared query listeners
+     */
+    public QueryListenerRegistry getQueryListeners() {
+        return queryListeners;
     }
 
     /* UPDATE */
     /**
-     * Update a rider object in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will return null once Firebase call ends
+     * Update a rider object in Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user.
      * @param docID the document id of the rider object that is being updated
      * @param updatedRider the rider object that will update the existing rider object in Firebase
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
+     * @return the task that completes once the Firebase call ends
      */
-    public void updateRider(String docID, Rider updatedRider, EventCompletionListener listener) {
+    public Task<Void> updateRider(String docID, Rider updatedRider) {
         Log.d("DBMANAGER","Updating Rider");
-        collectionRider.document(docID)
-                .set(updatedRider, SetOptions.merge())
-                .addOnSuccessListener(documentSnapshot -> listener.onCompletion(null, null))
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    Error err = new Error("Failed to update rider");
-                    listener.onCompletion(null, err);
-                });
+        invalidateRider(docID);
+        return DBTasks.withErrorMessage(
+                invalidateAfter(backend.setRider(docID, updatedRider, true), () -> invalidateRider(docID)),
+                "Failed to update rider");
     }
     /**
-     * Update a driver object in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will return null once Firebase call ends
+     * Update a driver object in Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user.
      * @param docID the document id of the driver object that is being updated
      * @param updatedDriver driver object that will update the existing driver object in Firebase
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void updateDriver(String docID, Driver updatedDriver, EventCompletionListener listener) {
-        collectionDriver.document(docID)
-                .set(updatedDriver, SetOptions.merge())
-                .addOnSuccessListener(documentSnapshot -> listener.onCompletion(null, null))
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    Error err = new Error("Failed to update driver");
-                    listener.onCompletion(null, err);
-                });
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> updateDriver(String docID, Driver updatedDriver) {
+        invalidateDriver(docID);
+        return DBTasks.withErrorMessage(
+                invalidateAfter(backend.setDriver(docID, updatedDriver, true), () -> invalidateDriver(docID)),
+                "Failed to update driver");
+    }
+    /**
+     * Set which of the user's two profiles is logged on, in a single commit and without reading
+     * either profile first. The profile of the given type gets the new logged on state and the
+     * other profile is always logged off. If the other profile does not exist, only the active
+     * profile is updated.
+     * @param docID the doc id of the user, shared by the rider and driver documents
+     * @param activeType the profile the user is logging in or out of
+     * @param loggedOn the new logged on state of the active profile
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> setLoggedOnState(String docID, User.TYPE activeType, boolean loggedOn) {
+        invalidateRider(docID);
+        invalidateDriver(docID);
+        Task<Void> write = invalidateAfter(backend.setLoggedOnState(docID, activeType, loggedOn), () -> {
+            invalidateRider(docID);
+            invalidateDriver(docID);
+        });
+        return DBTasks.withErrorMessage(write, "Failed to update logged on state");
+    }
+
+    /**
+     * Write the current location of a rider or driver, without reading or rewriting the rest of the
+     * profile. The cached profile is dropped like on any other write, so the location it is served
+     * with is never older than the last write.
+     * @param docID the doc id of the user
+     * @param type the profile the user is logged in with
+     * @param location the user's latest location
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> updateUserLocation(String docID, User.TYPE type, UserLocation location) {
+        Runnable invalidate = () -> {
+            if (type == User.TYPE.RIDER) {
+                invalidateRider(docID);
+            } else {
+                invalidateDriver(docID);
+            }
+        };
+        invalidate.run();
+        return DBTasks.withErrorMessage(invalidateAfter(backend.setCurrentLocation(docID, type, location), invalidate),
+                "Failed to update location");
+    }
+
+    /**
+     * Add a thumbs up or thumbs down to a driver's rating. The rating is a single increment of one
+     * of the driver's counter shards, so concurrent ratings never overwrite each other.
+     * @param driverID the doc id of the driver being rated
+     * @param thumbsUp true for a thumbs up, false for a thumbs down
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> submitDriverRating(String driverID, boolean thumbsUp) {
+        invalidateDriver(driverID);
+        return DBTasks.withErrorMessage(invalidateAfter(backend.addDriverRating(driverID, thumbsUp), () -> invalidateDriver(driverID)), "Failed to rate driver");
+    }
+
+    /**
+     * Remove a trip from a driver's queue of accepted trips, without reading the driver first.
+     * @param driverID the doc id of the driver
+     * @param tripID the document id of the trip to remove
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> removeFromDriverQueue(String driverID, String tripID) {
+        invalidateDriver(driverID);
+        return DBTasks.withErrorMessage(
+                invalidateAfter(backend.removeFromDriverQueue(driverID, tripID), () -> invalidateDriver(driverID)),
+                "Failed to update driver");
     }
+
     /**
-     * Update a trip object in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will get the updates
+     * Update a trip object in Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user.
      * @param docID the document id of the trip object that is being updated
      * @param updatedTrip object that will update the existing trip object in Firebase
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
      * @param listenForUpdates adds a snapshot listener if true
+     * @return the task that completes once the Firebase call ends
      */
-    public void updateTrip(String docID, Trip updatedTrip, EventCompletionListener listener, boolean listenForUpdates) {
-        collectionTrip.document(docID)
-                .set(updatedTrip, SetOptions.merge())
-                .addOnSuccessListener(aVoid -> {
+    public Task<Void> updateTrip(String docID, Trip updatedTrip, boolean listenForUpdates) {
+        tripReads.forget(docID);
+        return DBTasks.withErrorMessage(
+                backend.setTrip(docID, updatedTrip, true),
+                "Failed to update trip")
+                .onSuccessTask(aVoid -> {
                     if (listenForUpdates) {
-                        ListenerRegistration lr =
-                        collectionTrip
-                                .document(updatedTrip.getRiderID())
-                                .addSnapshotListener((documentSnapshot1, e) ->
-                                        App.getModel().handleTripStatusChanges(updatedTrip.getRiderID(), documentSnapshot1)
-                                );
-                        App.getModel().setTripListener(lr);
+                        App.getModel().setTripListener(tripListeners.watchSessionTrip(updatedTrip.getRiderID()));
                     }
-                    listener.onCompletion(null, null);
-                })
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    Error err = new Error("Failed to update trip");
-                    listener.onCompletion(null, err);
+                    return Tasks.forResult(null);
+                });
+    }
+
+    /**
+     * Move a trip from one status to the next, writing only the status and driver fields. The write
+     * is done in a transaction that first checks the trip is still in the expected status, so a stale
+     * client cannot move a trip backwards or skip a step.
+     * If the trip is no longer in the expected status the task fails with a TripConflictException.
+     * @param riderID the document id of the trip, the same as the rider's id
+     * @param expectedStatus the status the trip must currently be in
+     * @param newStatus the status to move the trip to
+     * @param driverID the driver of the trip, left unchanged if null
+     * @param listenForUpdates adds a snapshot listener if true
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> updateTripStatus(String riderID, Trip.STATUS expectedStatus, Trip.STATUS newStatus,
+                                       String driverID, boolean listenForUpdates) {
+        tripReads.forget(riderID);
+        Task<Boolean> transaction = backend.updateTripStatus(riderID, expectedStatus, newStatus, driverID);
+        return DBTasks.withErrorMessage(transaction, "Failed to update trip")
+                .onSuccessTask(updated -> {
+                    if (!updated) {
+                        return Tasks.forException(
+                                new TripConflictException("Trip is no longer " + expectedStatus.name()));
+                    }
+                    if (listenForUpdates) {
+                        App.getModel().setTripListener(tripListeners.watchSessionTrip(riderID));
+                    }
+                    return Tasks.forResult(null);
+                });
+    }
+
+    /**
+     * Accept a pending trip for a driver in a single transaction. The trip is only assigned if it is
+     * still PENDING, so when two drivers accept the same trip exactly one of them gets it. The trip id
+     * is added to the driver's accepted trips in the same commit.
+     * If it was successful, the task returns the accepted trip. If the trip was already taken the task
+     * fails with a TripConflictException carrying the TRIP_ALREADY_TAKEN message.
+     * @param tripID the document id of the trip being accepted
+     * @param driverID the doc id of the driver accepting the trip
+     * @param queuePosition the position of the trip in the driver's queue
+     * @param listenForUpdates adds a snapshot listener if true
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Trip> acceptTrip(String tripID, String driverID, long queuePosition, boolean listenForUpdates) {
+        invalidateDriver(driverID);
+        tripReads.forget(tripID);
+        Task<Trip> transaction = invalidateAfter(backend.acceptTrip(tripID, driverID, queuePosition),
+                () -> invalidateDriver(driverID));
+        return DBTasks.withErrorMessage(transaction, "Failed to accept trip")
+                .onSuccessTask(acceptedTrip -> {
+                    if (acceptedTrip == null) {
+                        return Tasks.forException(new TripConflictException(TRIP_ALREADY_TAKEN));
+                    }
+                    if (listenForUpdates) {
+                        App.getModel().setTripListener(tripListeners.watchSessionTrip(tripID));
+                    }
+                    return Tasks.forResult(acceptedTrip);
                 });
     }
 
     /* DELETE */
     /**
-     * Delete a rider object in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will return null once Firebase call ends
+     * Delete a rider object in Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user.
      * @param docID the document id of the rider object that is being deleted
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void deleteRider(String docID, EventCompletionListener listener) {
-        collectionRider.document(docID)
-                .delete()
-                .addOnSuccessListener(aVoid -> listener.onCompletion(null, null))
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    Error err = new Error("Failed to update trip");
-                    listener.onCompletion(null, err);
-                });
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> deleteRider(String docID) {
+        invalidateRider(docID);
+        return DBTasks.withErrorMessage(invalidateAfter(backend.deleteRider(docID), () -> invalidateRider(docID)), "Failed to delete rider");
     }
     /**
-     * Delete a driver object in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will return null once Firebase call ends
+     * Delete a driver object in Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user.
      * @param docID the document id of the driver object that is being deleted
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void deleteDriver(String docID, EventCompletionListener listener) {
-        collectionDriver.document(docID)
-                .delete()
-                .addOnSuccessListener(aVoid -> listener.onCompletion(null, null))
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    Error err = new Error("Failed to update trip");
-                    listener.onCompletion(null, err);
-                });
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> deleteDriver(String docID) {
+        invalidateDriver(docID);
+        return DBTasks.withErrorMessage(invalidateAfter(backend.deleteDriver(docID), () -> invalidateDriver(docID)), "Failed to delete driver");
     }
     /**
-     * Delete a trip object in Firebase. If it was not successful the listener passed in will handel the exception.
-     * If it was successful, the listener passed in will return null once Firebase call ends
+     * Delete a trip object in Firebase. If it was not successful the task fails with a message that
+     * can be shown to the user.
      * @param docID the document id of the trip object that is being deleted
-     * @param listener the listener that waits for the asynchronous Firebase call to finish
-     */
-    public void deleteTrip(String docID, EventCompletionListener listener) {
-        collectionTrip.document(docID)
-                .delete()
-                .addOnSuccessListener(aVoid -> listener.onCompletion(null, null))
-                .addOnFailureListener((@NonNull Exception e) -> {
-                    Log.d(TAG, Objects.requireNonNull(e.getMessage()));
-                    Error err = new Error("Failed to delete trip");
-                    listener.onCompletion(null, err);
-                });
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> deleteTrip(String docID) {
+        tripReads.forget(docID);
+        return DBTasks.withErrorMessage(backend.deleteTrip(docID), "Failed to delete trip");
+    }
+
+    /* HISTORY */
+    /**
+     * Move a completed trip that was paid for to the trip history, removing it from the trips
+     * collection and from its driver's accepted trips. A trip that is not completed is left alone.
+     * If it was not successful the task fails with a message that can be shown to the user.
+     * @param docID the document id of the trip
+     * @return the task that completes once the Firebase call ends
+     */
+    public Task<Void> archiveTrip(String docID) {
+        tripReads.forget(docID);
+        return DBTasks.withErrorMessage(archiver.archive(docID), "Failed to archive trip");
+    }
+
+    /**
+     * Move every trip completed long enough ago to have been paid for, and every pending trip nobody
+     * accepted for too long, to the trip history in batches. Joins the sweep already running if
+     * there is one.
+     * @return the task that completes with the number of trips archived
+     */
+    public Task<Integer> archiveFinishedTrips() {
+        return DBTasks.withErrorMessage(archiver.sweep(), "Failed to archive trips");
     }
 
-}
\ No newline at end of file
+}
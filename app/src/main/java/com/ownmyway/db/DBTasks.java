@@ -0,0 +1,76 @@
+package com.ownmyway.db;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.CancellationToken;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helpers for the Tasks returned by the db layer. Every DBManager and AuthDBManager call hands back
+ * a typed Task, so callers can chain requests with onSuccessTask, run them in parallel with
+ * Tasks.whenAll and stop waiting on them with a CancellationToken.
+ */
+public final class DBTasks {
+
+    private static final String TAG = "In Database Manager";
+
+    private DBTasks() {}
+
+    /**
+     * Replaces the failure of a Firebase task with an exception carrying a message that can be
+     * shown to the user. The original exception is logged and kept as the cause.
+     * @param task the Firebase task
+     * @param message the message to fail with
+     */
+    public static <T> Task<T> withErrorMessage(Task<T> task, String message) {
+        return task.continueWithTask(t -> {
+            if (t.isSuccessful() || t.isCanceled()) {
+                return t;
+            }
+            Exception e = t.getException();
+            Log.d(TAG, e != null && e.getMessage() != null ? e.getMessage() : message);
+            return Tasks.forException(new Exception(message, e));
+        });
+    }
+
+    /**
+     * Wraps a task so it can be cancelled by the caller. Firebase cannot abort a request that is
+     * already in flight, but once the token is cancelled the returned task is cancelled and its
+     * success and failure listeners never run, so callbacks are not delivered to a closed screen.
+     * If the wrapped task is cancelled instead, the returned task fails with a CancellationException
+     * so its listeners still complete.
+     * @param task the task to wrap
+     * @param token cancels the returned task
+     */
+    public static <T> Task<T> cancellable(Task<T> task, CancellationToken token) {
+        TaskCompletionSource<T> source = new TaskCompletionSource<>(token);
+        task.addOnCompleteListener(t -> {
+            if (t.isSuccessful()) {
+                source.trySetResult(t.getResult());
+            } else if (t.isCanceled()) {
+                source.trySetException(new CancellationException("Task was cancelled"));
+            } else {
+                source.trySetException(t.getException());
+            }
+        });
+        return source.getTask();
+    }
+
+    /**
+     * Converts a task failure into the Error type the views report. Failures of tasks combined with
+     * Tasks.whenAll are unwrapped, so the view shows the message of the request that failed.
+     * @param e the exception the task failed with
+     */
+    public static Error toError(Exception e) {
+        Throwable cause = e;
+        if (e instanceof ExecutionException && e.getCause() != null) {
+            cause = e.getCause();
+        }
+        return new Error(cause.getMessage());
+    }
+}
@@ -0,0 +1,122 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.Driver;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.SetOptions;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Distributed counter for driver ratings. Each driver has a small set of shard documents under
+ * Drivers/{id}/ratingShards, and a rating increments one random shard with FieldValue.increment,
+ * so submitting a rating is a single write and concurrent raters never overwrite each other.
+ * The rating shown to users is computed from the sum of the shards and cached for a short time.
+ */
+class DriverRatingCounter {
+    static final int NUM_SHARDS = 5;
+    private static final String SHARDS_COLLECTION_NAME = "ratingShards";
+    private static final String THUMBS_UP = "thumbsUp";
+    private static final String THUMBS_DOWN = "thumbsDown";
+    private static final long CACHE_TTL_MILLIS = 60 * 1000;
+
+    private final CollectionReference collectionDriver;
+    private final HashMap<String, CachedCount> cachedCounts = new HashMap<>();
+    private final Random random = new Random();
+
+    DriverRatingCounter(CollectionReference collectionDriver) {
+        this.collectionDriver = collectionDriver;
+    }
+
+    /**
+     * Adds a thumbs up or thumbs down to one of the driver's shards
+     * @param driverID the doc id of the driver being rated
+     * @param thumbsUp true for a thumbs up, false for a thumbs down
+     */
+    Task<Void> increment(String driverID, boolean thumbsUp) {
+        invalidate(driverID);
+        String shardID = String.valueOf(random.nextInt(NUM_SHARDS));
+        HashMap<String, Object> update = new HashMap<>();
+        update.put(thumbsUp ? THUMBS_UP : THUMBS_DOWN, FieldValue.increment(1));
+        return collectionDriver.document(driverID)
+                .collection(SHARDS_COLLECTION_NAME)
+                .document(shardID)
+                .set(update, SetOptions.merge());
+    }
+
+    /**
+     * Computes the driver's rating from the shards, on top of the counts stored on the driver
+     * document before ratings were sharded, and sets it on the driver
+     * @param driver the driver to set the rating on
+     * @return a task that completes once the rating is set
+     */
+    Task<Driver> loadRating(Driver driver) {
+        String driverID = driver.getDocID();
+        CachedCount cached = getCached(driverID);
+        if (cached != null) {
+            applyRating(driver, cached);
+            return Tasks.forResult(driver);
+        }
+
+        return collectionDriver.document(driverID)
+                .collection(SHARDS_COLLECTION_NAME)
+                .get()
+                .continueWith(task -> {
+                    CachedCount count = new CachedCount();
+                    for (DocumentSnapshot shard : task.getResult()) {
+                        count.thumbsUp += valueOf(shard, THUMBS_UP);
+                        count.thumbsDown += valueOf(shard, THUMBS_DOWN);
+                    }
+                    synchronized (cachedCounts) {
+                        cachedCounts.put(driverID, count);
+                    }
+                    applyRating(driver, count);
+                    return driver;
+                });
+    }
+
+    /**
+     * Drops the cached count of a driver, so the next read sums the shards again
+     * @param driverID the doc id of the driver
+     */
+    void invalidate(String driverID) {
+        synchronized (cachedCounts) {
+            cachedCounts.remove(driverID);
+        }
+    }
+
+    private CachedCount getCached(String driverID) {
+        synchronized (cachedCounts) {
+            CachedCount cached = cachedCounts.get(driverID);
+            if (cached != null && System.currentTimeMillis() - cached.loadedAt > CACHE_TTL_MILLIS) {
+                cachedCounts.remove(driverID);
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    private static void applyRating(Driver driver, CachedCount count) {
+        double thumbsUp = driver.getNumThumbsUp() + count.thumbsUp;
+        double thumbsDown = driver.getNumThumbsDown() + count.thumbsDown;
+        driver.setRating(Driver.computeRating(thumbsUp, thumbsDown));
+    }
+
+    private static long valueOf(DocumentSnapshot shard, String field) {
+        Long value = shard.getLong(field);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Summed shard counts of a driver and when they were read
+     */
+    private static class CachedCount {
+        private final long loadedAt = System.currentTimeMillis();
+        private long thumbsUp;
+        private long thumbsDown;
+    }
+}
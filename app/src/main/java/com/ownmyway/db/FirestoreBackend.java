@@ -0,0 +1,483 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.ArchivedTrip;
+import com.ownmyway.model.Driver;
+import com.ownmyway.model.GeoHash;
+import com.ownmyway.model.Rider;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripDelta;
+import com.ownmyway.model.TripRoute;
+import com.ownmyway.model.User;
+import com.ownmyway.model.UserLocation;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.Source;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Storage backend on Cloud Firestore. Riders, drivers and trips each have their own collection
+ * and a trip is stored under its rider's id. Conditional trip writes run in transactions and
+ * driver ratings are kept on sharded counters.
+ * A trip is split in two documents with the same id: the trip document holds only the fields that
+ * change or are queried (status, driver, queue position, geohash and creation time), and its route
+ * (locations, fare and rider name) is written once to the route collection. Listeners only watch
+ * trip documents, so a status change sends a few fields, and routes are read once and cached.
+ * Trips that are over are moved to the history collection in a compact form.
+ */
+public class FirestoreBackend implements StorageBackend {
+
+    private static final int ROUTE_CACHE_SIZE = 256;
+
+    private final FirebaseFirestore database;
+    private final CollectionReference collectionDriver, collectionRider, collectionTrip, collectionRoute,
+            collectionHistory;
+    private final DriverRatingCounter ratingCounter;
+    private final TripRouteCache routes;
+
+    public FirestoreBackend(String driverCollectionName,
+                            String riderCollectionName,
+                            String tripCollectionName,
+                            String routeCollectionName,
+                            String historyCollectionName) {
+        database = FirebaseFirestore.getInstance();
+        collectionDriver = database.collection(driverCollectionName);
+        collectionRider = database.collection(riderCollectionName);
+        collectionTrip = database.collection(tripCollectionName);
+        collectionRoute = database.collection(routeCollectionName);
+        collectionHistory = database.collection(historyCollectionName);
+        ratingCounter = new DriverRatingCounter(collectionDriver);
+        routes = new TripRouteCache(collectionRoute, ROUTE_CACHE_SIZE);
+    }
+
+    /* PROFILES */
+    @Override
+    public Task<Void> setUserProfiles(String docID, Rider rider, Driver driver) {
+        WriteBatch batch = database.batch();
+        batch.set(collectionRider.document(docID), rider);
+        batch.set(collectionDriver.document(docID), driver);
+        return batch.commit();
+    }
+
+    @Override
+    public Task<Void> setRider(String docID, Rider rider, boolean merge) {
+        DocumentReference ref = collectionRider.document(docID);
+        return merge ? ref.set(rider, SetOptions.merge()) : ref.set(rider);
+    }
+
+    @Override
+    public Task<Void> setDriver(String docID, Driver driver, boolean merge) {
+        DocumentReference ref = collectionDriver.document(docID);
+        return merge ? ref.set(driver, SetOptions.merge()) : ref.set(driver);
+    }
+
+    @Override
+    public Task<Rider> getRider(String docID, boolean cacheFirst) {
+        DocumentReference ref = collectionRider.document(docID);
+        return read(ref, cacheFirst)
+                .onSuccessTask(documentSnapshot -> Tasks.forResult(ModelCodec.toRider(documentSnapshot)));
+    }
+
+    @Override
+    public Task<Driver> getDriver(String docID, boolean cacheFirst) {
+        DocumentReference ref = collectionDriver.document(docID);
+        return read(ref, cacheFirst).onSuccessTask(documentSnapshot -> {
+            Driver driver = ModelCodec.toDriver(documentSnapshot);
+            if (driver == null) {
+                return Tasks.forResult(null);
+            }
+            // Fill in the rating from the sharded counters, keeping the stored one on failure
+            return ratingCounter.loadRating(driver).continueWith(task -> driver);
+        });
+    }
+
+    /**
+     * Read a document from the server, or from Firebase's local cache first if cacheFirst is true,
+     * falling back to the server when the document is not cached
+     */
+    private static Task<DocumentSnapshot> read(DocumentReference ref, boolean cacheFirst) {
+        if (!cacheFirst) {
+            return ref.get();
+        }
+        return ref.get(Source.CACHE).continueWithTask(task -> {
+            if (task.isSuccessful() && task.getResult().exists()) {
+                return task;
+            }
+            return ref.get();
+        });
+    }
+
+    @Override
+    public Task<Void> setLoggedOnState(String docID, User.TYPE activeType, boolean loggedOn) {
+        DocumentReference riderRef = collectionRider.document(docID);
+        DocumentReference driverRef = collectionDriver.document(docID);
+        boolean riderLoggedOn = activeType == User.TYPE.RIDER && loggedOn;
+        boolean driverLoggedOn = activeType == User.TYPE.DRIVER && loggedOn;
+
+        WriteBatch batch = database.batch();
+        batch.update(riderRef, "riderLoggedOn", riderLoggedOn);
+        batch.update(driverRef, "driverLoggedOn", driverLoggedOn);
+        return batch.commit().continueWithTask(task -> {
+            Exception e = task.getException();
+            if (e instanceof FirebaseFirestoreException &&
+                    ((FirebaseFirestoreException) e).getCode() == FirebaseFirestoreException.Code.NOT_FOUND) {
+                // Edge case: no corresponding profile of the other type
+                DocumentReference activeRef = activeType == User.TYPE.RIDER ? riderRef : driverRef;
+                String field = activeType == User.TYPE.RIDER ? "riderLoggedOn" : "driverLoggedOn";
+                return activeRef.update(field, loggedOn);
+            }
+            return task;
+        });
+    }
+
+    @Override
+    public Task<Void> setCurrentLocation(String docID, User.TYPE type, UserLocation location) {
+        CollectionReference collection = type == User.TYPE.RIDER ? collectionRider : collectionDriver;
+        return collection.document(docID).update("currentUserLocation", location);
+    }
+
+    @Override
+    public Task<Void> addDriverRating(String driverID, boolean thumbsUp) {
+        return ratingCounter.increment(driverID, thumbsUp);
+    }
+
+    @Override
+    public Task<Void> removeFromDriverQueue(String driverID, String tripID) {
+        return collectionDriver.document(driverID).update("acceptedTripIds", FieldValue.arrayRemove(tripID));
+    }
+
+    @Override
+    public Task<Void> deleteRider(String docID) {
+        return collectionRider.document(docID).delete();
+    }
+
+    @Override
+    public Task<Void> deleteDriver(String docID) {
+        return collectionDriver.document(docID).delete();
+    }
+
+    /* TRIPS */
+    @Override
+    public Task<Void> setTrip(String docID, Trip trip, boolean merge) {
+        DocumentReference tripRef = collectionTrip.document(docID);
+        DocumentReference routeRef = collectionRoute.document(docID);
+        TripRoute route = new TripRoute(trip);
+        routes.put(docID, route);
+
+        WriteBatch batch = database.batch();
+        if (merge) {
+            batch.set(routeRef, route, SetOptions.merge());
+            batch.set(tripRef, tripFields(trip), SetOptions.merge());
+        } else {
+            batch.set(routeRef, route);
+            batch.set(tripRef, tripFields(trip));
+        }
+        return batch.commit();
+    }
+
+    /**
+     * The fields of a trip stored on the trip document, everything but its route
+     */
+    private static Map<String, Object> tripFields(Trip trip) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("riderID", trip.getRiderID());
+        fields.put("driverID", trip.getDriverID());
+        fields.put("status", trip.getStatus() != null ? trip.getStatus().name() : null);
+        fields.put("geohash", trip.getGeohash());
+        fields.put("queuePosition", trip.getQueuePosition());
+        fields.put("createdAt", trip.getCreatedAt());
+        fields.put("completedAt", trip.getCompletedAt());
+        return fields;
+    }
+
+    @Override
+    public Task<Trip> getTrip(String docID) {
+        return collectionTrip.document(docID).get()
+                .onSuccessTask(documentSnapshot -> withRoute(ModelCodec.toTrip(documentSnapshot)));
+    }
+
+    /**
+     * Completes a trip read from its trip document with its route. A trip whose route is gone was
+     * deleted meanwhile and is returned as null.
+     */
+    private Task<Trip> withRoute(Trip trip) {
+        if (trip == null) {
+            return Tasks.forResult(null);
+        }
+        return routes.fill(Collections.singletonList(trip))
+                .onSuccessTask(missing -> Tasks.forResult(missing.isEmpty() ? trip : null));
+    }
+
+    @Override
+    public Task<Boolean> updateTripStatus(String riderID, Trip.STATUS expectedStatus, Trip.STATUS newStatus, String driverID) {
+        DocumentReference tripRef = collectionTrip.document(riderID);
+        return database.runTransaction(transaction -> {
+            String currentStatus = transaction.get(tripRef).getString("status");
+            if (!expectedStatus.name().equals(currentStatus)) {
+                return false;
+            }
+            Map<String, Object> update = new HashMap<>();
+            update.put("status", newStatus.name());
+            if (driverID != null) {
+                update.put("driverID", driverID);
+            }
+            if (newStatus == Trip.STATUS.COMPLETED) {
+                update.put("completedAt", System.currentTimeMillis());
+            }
+            transaction.update(tripRef, update);
+            return true;
+        });
+    }
+
+    @Override
+    public Task<Trip> acceptTrip(String tripID, String driverID, long queuePosition) {
+        DocumentReference tripRef = collectionTrip.document(tripID);
+        DocumentReference driverRef = collectionDriver.document(driverID);
+        return database.runTransaction(transaction -> {
+            Trip trip = ModelCodec.toTrip(transaction.get(tripRef));
+            if (trip == null || trip.getStatus() != Trip.STATUS.PENDING) {
+                return null;
+            }
+            transaction.update(tripRef,
+                    "driverID", driverID,
+                    "status", Trip.STATUS.DRIVER_ACCEPT.name(),
+                    "queuePosition", queuePosition);
+            transaction.update(driverRef, "acceptedTripIds", FieldValue.arrayUnion(tripID));
+
+            trip.setDriverID(driverID);
+            trip.setStatus(Trip.STATUS.DRIVER_ACCEPT);
+            trip.setQueuePosition(queuePosition);
+            return trip;
+        }).onSuccessTask(this::withRoute);
+    }
+
+    @Override
+    public Task<Void> deleteTrip(String docID) {
+        routes.invalidate(docID);
+        WriteBatch batch = database.batch();
+        batch.delete(collectionTrip.document(docID));
+        batch.delete(collectionRoute.document(docID));
+        return batch.commit();
+    }
+
+    /* HISTORY */
+    @Override
+    public Task<List<String>> getArchivableTripIDs(long staleBefore, long completedBefore, int limit) {
+        // Firestore queries cannot OR two fields, so completed and stale trips are read apart
+        Task<QuerySnapshot> completed = collectionTrip
+                .whereEqualTo("status", Trip.STATUS.COMPLETED.name())
+                .whereGreaterThan("completedAt", 0)
+                .whereLessThan("completedAt", completedBefore)
+                .limit(limit).get();
+        // Completed trips stored before completedAt was recorded are only found by their age
+        Task<QuerySnapshot> stale = collectionTrip
+                .whereIn("status", Arrays.asList(Trip.STATUS.PENDING.name(), Trip.STATUS.COMPLETED.name()))
+                .whereLessThan("createdAt", staleBefore)
+                .limit(limit).get();
+        return Tasks.whenAll(completed, stale).onSuccessTask(aVoid -> {
+            LinkedHashSet<String> docIDs = new LinkedHashSet<>();
+            for (DocumentSnapshot document : completed.getResult().getDocuments()) {
+                docIDs.add(document.getId());
+            }
+            for (DocumentSnapshot document : stale.getResult().getDocuments()) {
+                docIDs.add(document.getId());
+            }
+            List<String> ids = new ArrayList<>(docIDs);
+            return Tasks.forResult(ids.size() > limit ? ids.subList(0, limit) : ids);
+        });
+    }
+
+    @Override
+    public Task<Integer> archiveTrips(List<String> docIDs, long staleBefore, long completedBefore, long archivedAt) {
+        for (String docID : docIDs) {
+            routes.invalidate(docID);
+        }
+        return database.runTransaction(transaction -> {
+            // A transaction does all of its reads before any write
+            List<String> archivedIDs = new ArrayList<>();
+            List<Trip> archived = new ArrayList<>();
+            List<DocumentReference> queues = new ArrayList<>();
+            for (String docID : docIDs) {
+                Trip trip = ModelCodec.toTrip(transaction.get(collectionTrip.document(docID)));
+                if (trip == null || !ArchivedTrip.isArchivable(trip, staleBefore, completedBefore)) {
+                    continue;
+                }
+                if (trip.getStartUserLocation() == null) {
+                    TripRoute route = ModelCodec.toTripRoute(transaction.get(collectionRoute.document(docID)));
+                    if (route != null) {
+                        route.applyTo(trip);
+                    }
+                }
+                DocumentReference driverRef = null;
+                if (trip.getDriverID() != null) {
+                    driverRef = collectionDriver.document(trip.getDriverID());
+                    // The driver may have deleted their account since, there is no queue to update then
+                    if (!transaction.get(driverRef).exists()) {
+                        driverRef = null;
+                    }
+                }
+                archivedIDs.add(docID);
+                archived.add(trip);
+                queues.add(driverRef);
+            }
+
+            for (int i = 0; i < archived.size(); i++) {
+                Trip trip = archived.get(i);
+                String docID = archivedIDs.get(i);
+                transaction.set(collectionHistory.document(ArchivedTrip.historyID(trip)),
+                        new ArchivedTrip(trip, archivedAt));
+                transaction.delete(collectionTrip.document(docID));
+                transaction.delete(collectionRoute.document(docID));
+                if (queues.get(i) != null) {
+                    transaction.update(queues.get(i), "acceptedTripIds", FieldValue.arrayRemove(docID));
+                }
+            }
+            return archived.size();
+        });
+    }
+
+    /* LISTEN */
+    @Override
+    public ListenerRegistration listenTrip(String docID, TripListener listener) {
+        InOrder inOrder = new InOrder();
+        return collectionTrip.document(docID).addSnapshotListener((documentSnapshot, e) -> inOrder.run(() -> {
+            if (documentSnapshot == null) {
+                listener.onTrip(null, e);
+                return Tasks.forResult(null);
+            }
+            Trip trip = ModelCodec.toTrip(documentSnapshot);
+            if (trip == null) {
+                listener.onTrip(null, null);
+                return Tasks.forResult(null);
+            }
+            return InOrder.whenComplete(routes.fill(Collections.singletonList(trip)), task -> {
+                if (task.isSuccessful()) {
+                    // A trip whose route is gone was deleted, as the next snapshot will say
+                    listener.onTrip(task.getResult().isEmpty() ? trip : null, null);
+                } else {
+                    listener.onTrip(null, task.getException());
+                }
+            });
+        }));
+    }
+
+    @Override
+    public ListenerRegistration listenAllTrips(TripQueryListener listener) {
+        return listen(collectionTrip, listener);
+    }
+
+    @Override
+    public ListenerRegistration listenDriverQueue(String driverID, TripQueryListener listener) {
+        Query queueQuery = collectionTrip
+                .whereEqualTo("driverID", driverID)
+                .whereIn("status", Arrays.asList(
+                        Trip.STATUS.DRIVER_ACCEPT.name(),
+                        Trip.STATUS.DRIVER_PICKING_UP.name()))
+                .orderBy("queuePosition");
+        return listen(queueQuery, listener);
+    }
+
+    @Override
+    public ListenerRegistration listenPendingTrips(String cell, Trip startAfter, Trip endAt, int limit,
+                                                   TripQueryListener listener) {
+        Query query = collectionTrip
+                .whereEqualTo("status", Trip.STATUS.PENDING.name())
+                .whereGreaterThanOrEqualTo("geohash", cell)
+                .whereLessThanOrEqualTo("geohash", GeoHash.rangeEnd(cell))
+                .orderBy("geohash")
+                .orderBy("createdAt")
+                .orderBy(FieldPath.documentId());
+        if (startAfter != null) {
+            query = query.startAfter(startAfter.getGeohash(), startAfter.getCreatedAt(), startAfter.getRiderID());
+        }
+        if (endAt != null) {
+            query = query.endAt(endAt.getGeohash(), endAt.getCreatedAt(), endAt.getRiderID());
+        } else {
+            query = query.limit(limit);
+        }
+        return listen(query, listener);
+    }
+
+    /**
+     * Listens to a query, decoding only the trips that changed in each snapshot and completing them
+     * with their routes. A snapshot is applied to the feed only once the one before it was delivered
+     * or failed, so the feed always matches what the listener was last told. If the routes of a
+     * snapshot cannot be read the listener gets the error, and the trips of that snapshot are sent
+     * again with the next one. Trips whose route is gone were deleted and are reported as removed.
+     */
+    private ListenerRegistration listen(Query query, TripQueryListener listener) {
+        TripFeed feed = new TripFeed();
+        InOrder inOrder = new InOrder();
+        return query.addSnapshotListener((snapshot, e) -> inOrder.run(() -> {
+            if (snapshot == null) {
+                listener.onTrips(null, null, e);
+                return Tasks.forResult(null);
+            }
+            TripDelta delta = feed.apply(snapshot);
+            return InOrder.whenComplete(routes.fill(delta.getUpserted()), task -> {
+                if (task.isSuccessful()) {
+                    TripDelta delivered = feed.dropDeleted(delta, task.getResult());
+                    listener.onTrips(feed.ordered(snapshot), delivered, null);
+                } else {
+                    feed.failed(delta);
+                    listener.onTrips(null, null, task.getException());
+                }
+            });
+        }));
+    }
+
+    /**
+     * Handles the snapshots of one listener one at a time, in the order they arrived. A snapshot
+     * whose routes are all cached is handled right away unless an earlier one is still waiting for
+     * its routes. Snapshots and task listeners both run on the main thread, so no locking is needed.
+     */
+    private static class InOrder {
+        private Task<Void> tail = Tasks.forResult(null);
+
+        /**
+         * Runs a step once the steps before it are done
+         * @param step handles a snapshot and returns the task that completes once it is delivered
+         */
+        private void run(Supplier<Task<Void>> step) {
+            if (tail.isComplete()) {
+                tail = step.get();
+            } else {
+                tail = tail.continueWithTask(previous -> step.get());
+            }
+        }
+
+        /**
+         * Calls delivery once ready completes, right away if it already has
+         */
+        private static <T> Task<Void> whenComplete(Task<T> ready, OnCompleteListener<T> delivery) {
+            if (ready.isComplete()) {
+                delivery.onComplete(ready);
+                return Tasks.forResult(null);
+            }
+            return ready.continueWith(task -> {
+                delivery.onComplete(task);
+                return null;
+            });
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.ArchivedTrip;
+import com.ownmyway.model.Driver;
+import com.ownmyway.model.GeoHash;
+import com.ownmyway.model.Rider;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripDelta;
+import com.ownmyway.model.User;
+import com.ownmyway.model.UserLocation;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Storage backend that keeps every rider, driver and trip in memory, so service flows can be load
+ * tested at scale without a Firebase project. Every operation completes after a configurable
+ * latency and conditional trip writes are atomic, like Firestore transactions. Listeners are
+ * simulated: after a write, every listener whose results it may change is refreshed one latency
+ * later and gets the trips that changed.
+ * Unlike Firestore, tasks complete and listeners are called on the backend's own threads, not the
+ * main thread. Merged writes replace the whole object, which is what Firestore does for the fields
+ * our model classes have. Objects are copied in and out, so callers never share state with the store.
+ */
+public class InMemoryBackend implements StorageBackend {
+
+    private static final Comparator<Trip> BY_ID = (a, b) -> a.getRiderID().compareTo(b.getRiderID());
+    private static final Comparator<Trip> BY_QUEUE_POSITION = (a, b) -> {
+        int c = Long.compare(a.getQueuePosition(), b.getQueuePosition());
+        return c != 0 ? c : BY_ID.compare(a, b);
+    };
+    private static final Comparator<Trip> BY_GEOHASH = (a, b) -> {
+        int c = a.getGeohash().compareTo(b.getGeohash());
+        if (c == 0) {
+            c = Long.compare(a.getCreatedAt(), b.getCreatedAt());
+        }
+        return c != 0 ? c : BY_ID.compare(a, b);
+    };
+
+    private final long latencyMillis;
+    private final ScheduledExecutorService executor;
+
+    private final ConcurrentHashMap<String, Rider> riders = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Driver> drivers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Trip> trips = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ArchivedTrip> history = new ConcurrentHashMap<>();
+
+    private final Set<TripWatch> tripWatches = ConcurrentHashMap.newKeySet();
+    private final Set<QueryWatch> queryWatches = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates an empty backend
+     * @param latencyMillis how long every read, write and listener refresh takes
+     * @param threads the number of threads operations and listeners run on
+     */
+    public InMemoryBackend(long latencyMillis, int threads) {
+        this.latencyMillis = latencyMillis;
+        this.executor = Executors.newScheduledThreadPool(threads);
+    }
+
+    /**
+     * Stops the backend's threads. Pending operations and listener refreshes are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Number of listeners currently attached
+     */
+    public int getLiveListenerCount() {
+        return tripWatches.size() + queryWatches.size();
+    }
+
+    /**
+     * Number of trips moved to the trip history
+     */
+    public int getArchivedTripCount() {
+        return history.size();
+    }
+
+    /* PROFILES */
+    @Override
+    public Task<Void> setUserProfiles(String docID, Rider rider, Driver driver) {
+        Rider storedRider = Profiles.copyRider(rider);
+        Driver storedDriver = Profiles.copyDriver(driver);
+        return complete(() -> {
+            riders.put(docID, storedRider);
+            drivers.put(docID, storedDriver);
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Void> setRider(String docID, Rider rider, boolean merge) {
+        Rider stored = Profiles.copyRider(rider);
+        return complete(() -> {
+            riders.put(docID, stored);
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Void> setDriver(String docID, Driver driver, boolean merge) {
+        Driver stored = Profiles.copyDriver(driver);
+        return complete(() -> {
+            drivers.put(docID, stored);
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Rider> getRider(String docID, boolean cacheFirst) {
+        return complete(() -> {
+            Rider rider = riders.get(docID);
+            if (rider == null) {
+                return null;
+            }
+            Rider copy = Profiles.copyRider(rider);
+            copy.setDocID(docID);
+            return copy;
+        });
+    }
+
+    @Override
+    public Task<Driver> getDriver(String docID, boolean cacheFirst) {
+        return complete(() -> {
+            Driver driver = drivers.get(docID);
+            if (driver == null) {
+                return null;
+            }
+            Driver copy = Profiles.copyDriver(driver);
+            copy.setDocID(docID);
+            return copy;
+        });
+    }
+
+    @Override
+    public Task<Void> setLoggedOnState(String docID, User.TYPE activeType, boolean loggedOn) {
+        return complete(() -> {
+            boolean exists = activeType == User.TYPE.RIDER ? riders.containsKey(docID) : drivers.containsKey(docID);
+            if (!exists) {
+                throw new IllegalStateException("No " + activeType.name().toLowerCase() + " " + docID);
+            }
+            riders.computeIfPresent(docID, (id, rider) -> {
+                Rider updated = Profiles.copyRider(rider);
+                updated.setRiderLoggedOn(activeType == User.TYPE.RIDER && loggedOn);
+                return updated;
+            });
+            drivers.computeIfPresent(docID, (id, driver) -> {
+                Driver updated = Profiles.copyDriver(driver);
+                updated.setLoggedOn(activeType == User.TYPE.DRIVER && loggedOn);
+                return updated;
+            });
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Void> setCurrentLocation(String docID, User.TYPE type, UserLocation location) {
+        return complete(() -> {
+            User updated;
+            if (type == User.TYPE.RIDER) {
+                updated = riders.computeIfPresent(docID, (id, rider) -> {
+                    Rider copy = Profiles.copyRider(rider);
+                    copy.setCurrentUserLocation(location);
+                    return copy;
+                });
+            } else {
+                updated = drivers.computeIfPresent(docID, (id, driver) -> {
+                    Driver copy = Profiles.copyDriver(driver);
+                    copy.setCurrentUserLocation(location);
+                    return copy;
+                });
+            }
+            if (updated == null) {
+                throw new IllegalStateException("No " + type.name().toLowerCase() + " " + docID);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Void> addDriverRating(String driverID, boolean thumbsUp) {
+        return complete(() -> {
+            drivers.computeIfPresent(driverID, (id, driver) -> {
+                Driver updated = Profiles.copyDriver(driver);
+                if (thumbsUp) {
+                    updated.setNumThumbsUp(updated.getNumThumbsUp() + 1);
+                } else {
+                    updated.setNumThumbsDown(updated.getNumThumbsDown() + 1);
+                }
+                updated.setRating(Driver.computeRating(updated.getNumThumbsUp(), updated.getNumThumbsDown()));
+                return updated;
+            });
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Void> removeFromDriverQueue(String driverID, String tripID) {
+        return complete(() -> {
+            Driver updated = drivers.computeIfPresent(driverID, (id, driver) -> {
+                Driver copy = Profiles.copyDriver(driver);
+                copy.getAcceptedTripIds().remove(tripID);
+                return copy;
+            });
+            if (updated == null) {
+                throw new IllegalStateException("No driver " + driverID);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Void> deleteRider(String docID) {
+        return complete(() -> {
+            riders.remove(docID);
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Void> deleteDriver(String docID) {
+        return complete(() -> {
+            drivers.remove(docID);
+            return null;
+        });
+    }
+
+    /* TRIPS */
+    @Override
+    public Task<Void> setTrip(String docID, Trip trip, boolean merge) {
+        Trip stored = copyTrip(trip);
+        stored.setDocID(docID);
+        return complete(() -> {
+            writeTrip(docID, stored);
+            return null;
+        });
+    }
+
+    @Override
+    public Task<Trip> getTrip(String docID) {
+        return complete(() -> {
+            Trip trip = trips.get(docID);
+            return trip != null ? copyTrip(trip) : null;
+        });
+    }
+
+    @Override
+    public Task<Boolean> updateTripStatus(String riderID, Trip.STATUS expectedStatus, Trip.STATUS newStatus, String driverID) {
+        return complete(() -> {
+            Trip[] before = new Trip[1];
+            Trip after = trips.computeIfPresent(riderID, (id, trip) -> {
+                before[0] = trip;
+                if (trip.getStatus() != expectedStatus) {
+                    return trip;
+                }
+                Trip updated = copyTrip(trip);
+                updated.setStatus(newStatus);
+                if (newStatus == Trip.STATUS.COMPLETED) {
+                    updated.setCompletedAt(System.currentTimeMillis());
+                }
+                if (driverID != null) {
+                    updated.setDriverID(driverID);
+                }
+                return updated;
+            });
+            if (after == null || after == before[0]) {
+                return false;
+            }
+            tripChanged(riderID, before[0], after);
+            return true;
+        });
+    }
+
+    @Override
+    public Task<Trip> acceptTrip(String tripID, String driverID, long queuePosition) {
+        return complete(() -> {
+            Trip[] before = new Trip[1];
+            Trip after = trips.computeIfPresent(tripID, (id, trip) -> {
+                before[0] = trip;
+                if (trip.getStatus() != Trip.STATUS.PENDING) {
+                    return trip;
+                }
+                Trip updated = copyTrip(trip);
+                updated.setDriverID(driverID);
+                updated.setStatus(Trip.STATUS.DRIVER_ACCEPT);
+                updated.setQueuePosition(queuePosition);
+                return updated;
+            });
+            if (after == null || after == before[0]) {
+                return null;
+            }
+            drivers.computeIfPresent(driverID, (id, driver) -> {
+                Driver updated = Profiles.copyDriver(driver);
+                if (!updated.getAcceptedTripIds().contains(tripID)) {
+                    updated.getAcceptedTripIds().add(tripID);
+                }
+                return updated;
+            });
+            tripChanged(tripID, before[0], after);
+            return copyTrip(after);
+        });
+    }
+
+    @Override
+    public Task<Void> deleteTrip(String docID) {
+        return complete(() -> {
+            Trip removed = trips.remove(docID);
+            if (removed != null) {
+                tripChanged(docID, removed, null);
+            }
+            return null;
+        });
+    }
+
+    /* HISTORY */
+    @Override
+    public Task<List<String>> getArchivableTripIDs(long staleBefore, long completedBefore, int limit) {
+        return complete(() -> {
+            List<String> docIDs = new ArrayList<>();
+            for (Map.Entry<String, Trip> entry : trips.entrySet()) {
+                if (docIDs.size() == limit) {
+                    break;
+                }
+                if (ArchivedTrip.isArchivable(entry.getValue(), staleBefore, completedBefore)) {
+                    docIDs.add(entry.getKey());
+                }
+            }
+            return docIDs;
+        });
+    }
+
+    @Override
+    public Task<Integer> archiveTrips(List<String> docIDs, long staleBefore, long completedBefore, long archivedAt) {
+        return complete(() -> {
+            int archived = 0;
+            for (String docID : docIDs) {
+                Trip[] removed = new Trip[1];
+                trips.computeIfPresent(docID, (id, trip) -> {
+                    if (!ArchivedTrip.isArchivable(trip, staleBefore, completedBefore)) {
+                        return trip;
+                    }
+                    removed[0] = trip;
+                    return null;
+                });
+                Trip trip = removed[0];
+                if (trip == null) {
+                    continue;
+                }
+                history.put(ArchivedTrip.historyID(trip), new ArchivedTrip(trip, archivedAt));
+                if (trip.getDriverID() != null) {
+                    drivers.computeIfPresent(trip.getDriverID(), (id, driver) -> {
+                        Driver copy = Profiles.copyDriver(driver);
+                        copy.getAcceptedTripIds().remove(docID);
+                        return copy;
+                    });
+                }
+                tripChanged(docID, trip, null);
+                archived++;
+            }
+            return archived;
+        });
+    }
+
+    /* LISTEN */
+    @Override
+    public ListenerRegistration listenTrip(String docID, TripListener listener) {
+        TripWatch watch = new TripWatch(docID, listener);
+        tripWatches.add(watch);
+        schedule(watch::refresh);
+        return () -> {
+            watch.removed = true;
+            tripWatches.remove(watch);
+        };
+    }
+
+    @Override
+    public ListenerRegistration listenAllTrips(TripQueryListener listener) {
+        return listen(new QueryWatch(trip -> true, BY_ID, null, null, 0, listener));
+    }
+
+    @Override
+    public ListenerRegistration listenDriverQueue(String driverID, TripQueryListener listener) {
+        return listen(new QueryWatch(
+                trip -> driverID.equals(trip.getDriverID()) &&
+                        (trip.getStatus() == Trip.STATUS.DRIVER_ACCEPT ||
+                                trip.getStatus() == Trip.STATUS.DRIVER_PICKING_UP),
+                BY_QUEUE_POSITION, null, null, 0, listener));
+    }
+
+    @Override
+    public ListenerRegistration listenPendingTrips(String cell, Trip startAfter, Trip endAt, int limit,
+                                                   TripQueryListener listener) {
+        String rangeEnd = GeoHash.rangeEnd(cell);
+        return listen(new QueryWatch(
+                trip -> trip.getStatus() == Trip.STATUS.PENDING && trip.getGeohash() != null &&
+                        trip.getGeohash().compareTo(cell) >= 0 && trip.getGeohash().compareTo(rangeEnd) <= 0,
+                BY_GEOHASH, startAfter, endAt, endAt == null ? limit : 0, listener));
+    }
+
+    private ListenerRegistration listen(QueryWatch watch) {
+        queryWatches.add(watch);
+        schedule(watch::refresh);
+        return () -> {
+            watch.removed = true;
+            queryWatches.remove(watch);
+        };
+    }
+
+    /**
+     * Stores a trip and refreshes the listeners it may concern
+     */
+    private void writeTrip(String docID, Trip trip) {
+        Trip before = trips.put(docID, trip);
+        tripChanged(docID, before, trip);
+    }
+
+    /**
+     * Refreshes, after one latency, every listener that matched the trip before or after a write
+     */
+    private void tripChanged(String docID, Trip before, Trip after) {
+        for (TripWatch watch : tripWatches) {
+            if (watch.docID.equals(docID)) {
+                schedule(watch::refresh);
+            }
+        }
+        for (QueryWatch watch : queryWatches) {
+            if ((before != null && watch.filter.test(before)) || (after != null && watch.filter.test(after))) {
+                schedule(watch::refresh);
+            }
+        }
+    }
+
+    /**
+     * Runs an operation after one latency and completes the returned task with its result
+     */
+    private <T> Task<T> complete(Callable<T> operation) {
+        TaskCompletionSource<T> source = new TaskCompletionSource<>();
+        schedule(() -> {
+            try {
+                source.setResult(operation.call());
+            } catch (Exception e) {
+                source.setException(e);
+            }
+        });
+        return source.getTask();
+    }
+
+    private void schedule(Runnable runnable) {
+        if (!executor.isShutdown()) {
+            executor.schedule(runnable, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A listener on a single trip
+     */
+    private class TripWatch {
+        private final String docID;
+        private final TripListener listener;
+        private volatile boolean removed;
+        private boolean received;
+        private Trip last;
+
+        private TripWatch(String docID, TripListener listener) {
+            this.docID = docID;
+            this.listener = listener;
+        }
+
+        private synchronized void refresh() {
+            if (removed) {
+                return;
+            }
+            Trip current = trips.get(docID);
+            if (received && current == last) {
+                return;
+            }
+            received = true;
+            last = current;
+            listener.onTrip(current != null ? copyTrip(current) : null, null);
+        }
+    }
+
+    /**
+     * A listener on a query. Every refresh runs the query again and compares the stored trips to
+     * the ones it matched last time. Stored trips are replaced, never changed, on every write, so a
+     * trip changed if and only if its stored object did.
+     */
+    private class QueryWatch {
+        private final Predicate<Trip> filter;
+        private final Comparator<Trip> order;
+        private final Trip startAfter;
+        private final Trip endAt;
+        private final int limit;
+        private final TripQueryListener listener;
+        private volatile boolean removed;
+        private Map<String, Trip> last;
+
+        private QueryWatch(Predicate<Trip> filter, Comparator<Trip> order, Trip startAfter, Trip endAt,
+                           int limit, TripQueryListener listener) {
+            this.filter = filter;
+            this.order = order;
+            this.startAfter = startAfter;
+            this.endAt = endAt;
+            this.limit = limit;
+            this.listener = listener;
+        }
+
+        private synchronized void refresh() {
+            if (removed) {
+                return;
+            }
+            List<Trip> matched = new ArrayList<>();
+            for (Trip trip : trips.values()) {
+                if (filter.test(trip) &&
+                        (startAfter == null || order.compare(trip, startAfter) > 0) &&
+                        (endAt == null || order.compare(trip, endAt) <= 0)) {
+                    matched.add(trip);
+                }
+            }
+            Collections.sort(matched, order);
+            if (limit > 0 && matched.size() > limit) {
+                matched = matched.subList(0, limit);
+            }
+
+            Map<String, Trip> current = new LinkedHashMap<>();
+            for (Trip trip : matched) {
+                current.put(trip.getRiderID(), trip);
+            }
+            TripDelta delta = new TripDelta();
+            Map<String, Trip> copies = new HashMap<>();
+            for (Map.Entry<String, Trip> entry : current.entrySet()) {
+                if (last == null || last.get(entry.getKey()) != entry.getValue()) {
+                    Trip copy = copyTrip(entry.getValue());
+                    copies.put(entry.getKey(), copy);
+                    delta.upsert(copy);
+                }
+            }
+            if (last != null) {
+                for (String docID : last.keySet()) {
+                    if (!current.containsKey(docID)) {
+                        delta.remove(docID);
+                    }
+                }
+                if (delta.isEmpty()) {
+                    return;
+                }
+            }
+            last = current;
+
+            List<Trip> results = new ArrayList<>(current.size());
+            for (Map.Entry<String, Trip> entry : current.entrySet()) {
+                Trip copy = copies.get(entry.getKey());
+                results.add(copy != null ? copy : copyTrip(entry.getValue()));
+            }
+            listener.onTrips(results, delta, null);
+        }
+    }
+
+    private static Trip copyTrip(Trip trip) {
+        Trip copy = new Trip();
+        copy.setDocID(trip.getDocID());
+        copy.setRiderID(trip.getRiderID());
+        copy.setDriverID(trip.getDriverID());
+        copy.setStatus(trip.getStatus());
+        copy.setStartUserLocation(trip.getStartUserLocation());
+        copy.setEndUserLocation(trip.getEndUserLocation());
+        copy.setFareOffering(trip.getFareOffering());
+        copy.setRiderUserName(trip.getRiderUserName());
+        copy.setGeohash(trip.getGeohash());
+        copy.setQueuePosition(trip.getQueuePosition());
+        copy.setCreatedAt(trip.getCreatedAt());
+        copy.setCompletedAt(trip.getCompletedAt());
+        return copy;
+    }
+}
@@ -0,0 +1,225 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.Account;
+import com.ownmyway.model.Driver;
+import com.ownmyway.model.Rider;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripRoute;
+import com.ownmyway.model.User;
+import com.ownmyway.model.UserLocation;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.DocumentSnapshot;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written decoders from a document's fields to our model classes. DocumentSnapshot.toObject
+ * looks up every setter through reflection for each document, which is our top CPU cost when a
+ * driver browses a dense area. These read the same fields directly from the document's data and
+ * give the same result as toObject for every document we write.
+ * Firestore hands back whole numbers as Long and other numbers as Double whatever the field was
+ * written as, so numbers are read through Number. A field missing from the document is left as
+ * the empty constructor sets it, like toObject does.
+ */
+public final class ModelCodec {
+
+    private ModelCodec() {}
+
+    /**
+     * Reads a trip document
+     * @param documentSnapshot the trip document
+     * @return the trip, or null if the document does not exist
+     */
+    public static Trip toTrip(DocumentSnapshot documentSnapshot) {
+        Map<String, Object> data = documentSnapshot.getData();
+        return data != null ? decodeTrip(documentSnapshot.getId(), data) : null;
+    }
+
+    /**
+     * Reads a route document
+     * @param documentSnapshot the route document
+     * @return the route, or null if the document does not exist
+     */
+    public static TripRoute toTripRoute(DocumentSnapshot documentSnapshot) {
+        Map<String, Object> data = documentSnapshot.getData();
+        return data != null ? decodeTripRoute(data) : null;
+    }
+
+    /**
+     * Reads a rider document
+     * @param documentSnapshot the rider document
+     * @return the rider, or null if the document does not exist
+     */
+    public static Rider toRider(DocumentSnapshot documentSnapshot) {
+        Map<String, Object> data = documentSnapshot.getData();
+        return data != null ? decodeRider(documentSnapshot.getId(), data) : null;
+    }
+
+    /**
+     * Reads a driver document
+     * @param documentSnapshot the driver document
+     * @return the driver, or null if the document does not exist
+     */
+    public static Driver toDriver(DocumentSnapshot documentSnapshot) {
+        Map<String, Object> data = documentSnapshot.getData();
+        return data != null ? decodeDriver(documentSnapshot.getId(), data) : null;
+    }
+
+    /**
+     * Builds a trip from the fields of its document. Trips stored before routes were split out
+     * also carry their route, which is read as well.
+     * @param docID the document id of the trip
+     * @param data the fields of the document
+     */
+    public static Trip decodeTrip(String docID, Map<String, Object> data) {
+        Trip trip = new Trip();
+        trip.setDocID(docID);
+        trip.setRiderID(string(data.get("riderID")));
+        trip.setDriverID(string(data.get("driverID")));
+        Object status = data.get("status");
+        if (status != null) {
+            trip.setStatus(Trip.STATUS.valueOf((String) status));
+        }
+        trip.setStartUserLocation(decodeUserLocation(map(data.get("startUserLocation"))));
+        trip.setEndUserLocation(decodeUserLocation(map(data.get("endUserLocation"))));
+        trip.setFareOffering(doubleValue(data.get("fareOffering")));
+        trip.setRiderUserName(string(data.get("riderUserName")));
+        trip.setGeohash(string(data.get("geohash")));
+        trip.setQueuePosition(longValue(data.get("queuePosition")));
+        trip.setCreatedAt(longValue(data.get("createdAt")));
+        trip.setCompletedAt(longValue(data.get("completedAt")));
+        return trip;
+    }
+
+    /**
+     * Builds the route of a trip from the fields of its document
+     * @param data the fields of the document
+     */
+    public static TripRoute decodeTripRoute(Map<String, Object> data) {
+        TripRoute route = new TripRoute();
+        route.setStartUserLocation(decodeUserLocation(map(data.get("startUserLocation"))));
+        route.setEndUserLocation(decodeUserLocation(map(data.get("endUserLocation"))));
+        route.setFareOffering(doubleValue(data.get("fareOffering")));
+        route.setRiderUserName(string(data.get("riderUserName")));
+        route.setCreatedAt(longValue(data.get("createdAt")));
+        return route;
+    }
+
+    /**
+     * Builds a location from a nested map
+     * @param data the fields of the location, or null
+     * @return the location, or null if there is none
+     */
+    public static UserLocation decodeUserLocation(Map<String, Object> data) {
+        if (data == null) {
+            return null;
+        }
+        UserLocation location = new UserLocation();
+        location.setLatitude(doubleValue(data.get("latitude")));
+        location.setLongitude(doubleValue(data.get("longitude")));
+        location.setAddress(string(data.get("address")));
+        return location;
+    }
+
+    /**
+     * Builds an account from a nested map
+     * @param data the fields of the account, or null
+     * @return the account, or null if there is none
+     */
+    public static Account decodeAccount(Map<String, Object> data) {
+        if (data == null) {
+            return null;
+        }
+        Account account = new Account();
+        account.setFirstName(string(data.get("firstName")));
+        account.setLastName(string(data.get("lastName")));
+        account.setEmail(string(data.get("email")));
+        account.setPhoneNumber(string(data.get("phoneNumber")));
+        return account;
+    }
+
+    /**
+     * Builds a rider from the fields of its document
+     * @param docID the document id of the rider
+     * @param data the fields of the document
+     */
+    public static Rider decodeRider(String docID, Map<String, Object> data) {
+        Rider rider = new Rider();
+        decodeUser(rider, data);
+        rider.setDocID(docID);
+        rider.setTimestamp(date(data.get("timestamp")));
+        rider.setRiderLoggedOn(booleanValue(data.get("riderLoggedOn")));
+        return rider;
+    }
+
+    /**
+     * Builds a driver from the fields of its document
+     * @param docID the document id of the driver
+     * @param data the fields of the document
+     */
+    public static Driver decodeDriver(String docID, Map<String, Object> data) {
+        Driver driver = new Driver();
+        decodeUser(driver, data);
+        driver.setDocID(docID);
+        driver.setTimestamp(date(data.get("timestamp")));
+        driver.setLoggedOn(booleanValue(data.get("driverLoggedOn")));
+        driver.setRating(doubleValue(data.get("rating")));
+        driver.setNumThumbsUp(doubleValue(data.get("numThumbsUp")));
+        driver.setNumThumbsDown(doubleValue(data.get("numThumbsDown")));
+        driver.setAcceptedTripIds(stringList(data.get("acceptedTripIds")));
+        return driver;
+    }
+
+    private static void decodeUser(User user, Map<String, Object> data) {
+        user.setUsername(string(data.get("username")));
+        user.setAccount(decodeAccount(map(data.get("account"))));
+        user.setCurrentUserLocation(decodeUserLocation(map(data.get("currentUserLocation"))));
+        Object type = data.get("type");
+        if (type != null) {
+            user.setType(User.TYPE.valueOf((String) type));
+        }
+    }
+
+    private static String string(Object value) {
+        return (String) value;
+    }
+
+    private static double doubleValue(Object value) {
+        return value != null ? ((Number) value).doubleValue() : 0;
+    }
+
+    private static long longValue(Object value) {
+        return value != null ? ((Number) value).longValue() : 0;
+    }
+
+    private static boolean booleanValue(Object value) {
+        return value != null && (Boolean) value;
+    }
+
+    private static Date date(Object value) {
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toDate();
+        }
+        return (Date) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    private static List<String> stringList(Object value) {
+        if (value == null) {
+            return null;
+        }
+        List<?> values = (List<?>) value;
+        List<String> strings = new ArrayList<>(values.size());
+        for (Object element : values) {
+            strings.add((String) element);
+        }
+        return strings;
+    }
+}
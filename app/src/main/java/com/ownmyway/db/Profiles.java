@@ -0,0 +1,64 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.Account;
+import com.ownmyway.model.Driver;
+import com.ownmyway.model.Rider;
+import com.ownmyway.model.User;
+import com.ownmyway.model.UserLocation;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Copies of rider and driver profiles, for the places that keep a profile while callers may change
+ * the one they were handed, such as the user cache and the in-memory backend.
+ */
+final class Profiles {
+
+    private Profiles() {}
+
+    static Rider copyRider(Rider rider) {
+        if (rider == null) {
+            return null;
+        }
+        Rider copy = new Rider();
+        copyUser(rider, copy);
+        copy.setDocID(rider.getDocID());
+        copy.setTimestamp(rider.getTimestamp() != null ? rider.getTimestamp() : new Date());
+        copy.setRiderLoggedOn(rider.getRiderLoggedOn());
+        return copy;
+    }
+
+    static Driver copyDriver(Driver driver) {
+        if (driver == null) {
+            return null;
+        }
+        Driver copy = new Driver();
+        copyUser(driver, copy);
+        copy.setDocID(driver.getDocID());
+        copy.setTimestamp(driver.getTimestamp() != null ? driver.getTimestamp() : new Date());
+        copy.setLoggedOn(driver.getDriverLoggedOn());
+        copy.setNumThumbsUp(driver.getNumThumbsUp());
+        copy.setNumThumbsDown(driver.getNumThumbsDown());
+        copy.setRating(driver.getRating());
+        copy.setAcceptedTripIds(driver.getAcceptedTripIds() != null ?
+                new ArrayList<>(driver.getAcceptedTripIds()) : new ArrayList<>());
+        return copy;
+    }
+
+    private static void copyUser(User user, User copy) {
+        copy.setUsername(user.getUsername());
+        Account account = user.getAccount();
+        if (account != null) {
+            copy.setAccount(new Account(account.getFirstName(), account.getLastName(), account.getEmail(),
+                    account.getPhoneNumber()));
+        }
+        copy.setType(user.getType());
+        UserLocation location = user.getCurrentUserLocation();
+        if (location != null) {
+            UserLocation locationCopy = new UserLocation(location.getLatitude(), location.getLongitude());
+            locationCopy.setAddress(location.getAddress());
+            copy.setCurrentUserLocation(locationCopy);
+        }
+    }
+}
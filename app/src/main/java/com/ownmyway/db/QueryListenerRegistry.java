@@ -0,0 +1,119 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripDelta;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps a single live backend listener per trip query and fans its changes out to any number of
+ * subscribers. The backend listener is attached when the first subscriber arrives and detached
+ * when the last one removes its registration, so opening the same screen repeatedly does not
+ * stack up listeners on the same query. Each query's results are decoded once and subscribers
+ * only receive the trips that changed.
+ */
+public class QueryListenerRegistry {
+
+    /**
+     * Receives the changes of a shared query listener
+     */
+    public interface Subscriber {
+        void onTripDelta(TripDelta delta, Exception e);
+    }
+
+    /**
+     * Attaches the backend listener of a query
+     */
+    public interface Attacher {
+        ListenerRegistration attach(StorageBackend.TripQueryListener listener);
+    }
+
+    private final HashMap<String, SharedListener> listeners = new HashMap<>();
+
+    /**
+     * Subscribe to a query. If a listener for the key is already live the subscriber shares it and
+     * immediately receives every trip already matched, otherwise a new backend listener is attached.
+     * @param key uniquely identifies the query, queries with the same key share one listener
+     * @param attacher attaches the backend listener of the query
+     * @param subscriber receives the changes of every result of the query
+     * @return a registration that unsubscribes when removed
+     */
+    public synchronized ListenerRegistration subscribe(String key, Attacher attacher, Subscriber subscriber) {
+        SharedListener shared = listeners.get(key);
+        if (shared == null) {
+            shared = new SharedListener();
+            listeners.put(key, shared);
+            shared.subscribers.add(subscriber);
+            shared.registration = attacher.attach(shared::dispatch);
+        } else {
+            shared.subscribers.add(subscriber);
+            if (shared.trips != null) {
+                TripDelta current = new TripDelta();
+                for (Trip trip : shared.trips) {
+                    current.upsert(trip);
+                }
+                subscriber.onTripDelta(current, null);
+            }
+        }
+
+        SharedListener subscribed = shared;
+        return () -> unsubscribe(key, subscribed, subscriber);
+    }
+
+    /**
+     * Number of backend listeners currently attached by the registry
+     */
+    public synchronized int getLiveListenerCount() {
+        return listeners.size();
+    }
+
+    /**
+     * Detaches every listener, used when the user logs out
+     */
+    public synchronized void clear() {
+        for (SharedListener shared : listeners.values()) {
+            shared.registration.remove();
+        }
+        listeners.clear();
+    }
+
+    private synchronized void unsubscribe(String key, SharedListener shared, Subscriber subscriber) {
+        if (!shared.subscribers.remove(subscriber)) {
+            return;
+        }
+        if (shared.subscribers.isEmpty() && listeners.get(key) == shared) {
+            shared.registration.remove();
+            listeners.remove(key);
+        }
+    }
+
+    /**
+     * One live backend listener and everyone interested in its results
+     */
+    private class SharedListener {
+        private final List<Subscriber> subscribers = new ArrayList<>();
+        private ListenerRegistration registration;
+        private List<Trip> trips;
+
+        private void dispatch(List<Trip> trips, TripDelta delta, Exception e) {
+            List<Subscriber> toNotify;
+            synchronized (QueryListenerRegistry.this) {
+                if (e == null) {
+                    // The first result is delivered even when empty so subscribers can render
+                    boolean first = this.trips == null;
+                    this.trips = trips;
+                    if (!first && delta.isEmpty()) {
+                        return;
+                    }
+                }
+                toNotify = new ArrayList<>(subscribers);
+            }
+            for (Subscriber subscriber : toNotify) {
+                subscriber.onTripDelta(delta, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.ownmyway.db;
+
+import com.google.android.gms.tasks.Task;
+
+import java.util.HashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent reads of the same document. While a read is in flight every other read of
+ * the same key is handed the same task instead of starting another request, so screens that look
+ * up the same profile at the same moment share a single Firebase round trip and get the same
+ * result. Once the read completes the next lookup starts a new request.
+ * A read can be forgotten when the document is written, its result is then still returned to
+ * the callers that joined it but is not cached.
+ * @param <T> the type of the result
+ */
+class SingleFlight<T> {
+    private final HashMap<String, Task<T>> inFlight = new HashMap<>();
+
+    /**
+     * Joins the read of a key in flight, or starts a new one
+     * @param key the key of the document
+     * @param read starts the read, only called if no read of the key is in flight
+     * @return the task of the read in flight
+     */
+    synchronized Task<T> run(String key, Supplier<Task<T>> read) {
+        return run(key, read, null);
+    }
+
+    /**
+     * Joins the read of a key in flight, or starts a new one whose result is cached once read
+     * @param key the key of the document
+     * @param read starts the read, only called if no read of the key is in flight
+     * @param cache caches the result, only called if the read succeeds and was not forgotten meanwhile
+     * @return the task of the read in flight
+     */
+    synchronized Task<T> run(String key, Supplier<Task<T>> read, Consumer<T> cache) {
+        Task<T> task = inFlight.get(key);
+        if (task != null) {
+            return task;
+        }
+        Task<T> started = read.get();
+        inFlight.put(key, started);
+        // Runs on the thread that completes the read, or right away if it already has
+        started.addOnCompleteListener(Runnable::run, t -> complete(key, started, cache));
+        return started;
+    }
+
+    /**
+     * The read of a key in flight
+     * @param key the key of the document
+     * @return the task of the read, or null if none is in flight
+     */
+    synchronized Task<T> get(String key) {
+        return inFlight.get(key);
+    }
+
+    /**
+     * Stops handing out the read of a key in flight and drops its pending cache put, so reads
+     * started after a write do not get the result read before it, from the read or from the cache
+     * @param key the key of the document
+     */
+    synchronized void forget(String key) {
+        inFlight.remove(key);
+    }
+
+    /**
+     * Caches the result of a read unless it was forgotten. Holding the lock while caching means a
+     * write forgets the read either before the put, which is then skipped, or after it, and then
+     * invalidates what was put.
+     */
+    private synchronized void complete(String key, Task<T> task, Consumer<T> cache) {
+        if (inFlight.get(key) != task) {
+            return;
+        }
+        inFlight.remove(key);
+        if (cache != null && task.isSuccessful()) {
+            cache.accept(task.getResult());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.Driver;
+import com.ownmyway.model.Rider;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripDelta;
+import com.ownmyway.model.User;
+import com.ownmyway.model.UserLocation;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.util.List;
+
+/**
+ * Storage operations DBManager is built on. FirestoreBackend is the backend the app runs on,
+ * InMemoryBackend keeps everything in memory so service flows can be load tested without a
+ * Firebase project. Backends return raw results: a conditional write that does not apply
+ * returns false or null, and DBManager turns that and any failure into the error the user sees.
+ */
+public interface StorageBackend {
+
+    /**
+     * Receives every change of a single trip
+     */
+    interface TripListener {
+        /**
+         * @param trip the latest trip, or null if it was deleted
+         * @param e the error the listener failed with, the trip is null in that case
+         */
+        void onTrip(Trip trip, Exception e);
+    }
+
+    /**
+     * Receives every change of a trip query
+     */
+    interface TripQueryListener {
+        /**
+         * @param trips every trip the query currently matches, in query order
+         * @param delta the trips that changed since the last call, every trip on the first call
+         * @param e the error the listener failed with, trips and delta are null in that case
+         */
+        void onTrips(List<Trip> trips, TripDelta delta, Exception e);
+    }
+
+    /* PROFILES */
+    /** Writes both profiles of a new user in one commit */
+    Task<Void> setUserProfiles(String docID, Rider rider, Driver driver);
+
+    /** Writes a rider, merging into the stored rider if merge is true */
+    Task<Void> setRider(String docID, Rider rider, boolean merge);
+
+    /** Writes a driver, merging into the stored driver if merge is true */
+    Task<Void> setDriver(String docID, Driver driver, boolean merge);
+
+    /** Reads a rider, or null if there is none. If cacheFirst is true a local copy may be returned */
+    Task<Rider> getRider(String docID, boolean cacheFirst);
+
+    /** Reads a driver with its rating filled in, or null if there is none */
+    Task<Driver> getDriver(String docID, boolean cacheFirst);
+
+    /** Logs the profile of activeType on or off and logs the other profile off */
+    Task<Void> setLoggedOnState(String docID, User.TYPE activeType, boolean loggedOn);
+
+    /** Writes only the current location of a rider or driver */
+    Task<Void> setCurrentLocation(String docID, User.TYPE type, UserLocation location);
+
+    /** Adds a thumbs up or thumbs down to a driver's rating */
+    Task<Void> addDriverRating(String driverID, boolean thumbsUp);
+
+    /** Removes a trip from a driver's accepted trips */
+    Task<Void> removeFromDriverQueue(String driverID, String tripID);
+
+    Task<Void> deleteRider(String docID);
+
+    Task<Void> deleteDriver(String docID);
+
+    /* TRIPS */
+    /** Writes a trip, merging into the stored trip if merge is true. A trip's id is its rider's id */
+    Task<Void> setTrip(String docID, Trip trip, boolean merge);
+
+    /** Reads a trip, or null if there is none */
+    Task<Trip> getTrip(String docID);
+
+    /**
+     * Moves a trip to a new status if it is still in the expected status
+     * @param driverID the driver of the trip, left unchanged if null
+     * @return true if the trip was updated, false if it was no longer in the expected status
+     */
+    Task<Boolean> updateTripStatus(String riderID, Trip.STATUS expectedStatus, Trip.STATUS newStatus, String driverID);
+
+    /**
+     * Assigns a pending trip to a driver and adds it to the driver's accepted trips
+     * @return the accepted trip, or null if the trip was no longer pending
+     */
+    Task<Trip> acceptTrip(String tripID, String driverID, long queuePosition);
+
+    Task<Void> deleteTrip(String docID);
+
+    /* HISTORY */
+    /**
+     * Reads the ids of at most limit trips that were completed before completedBefore, or are still
+     * pending and were requested before staleBefore
+     */
+    Task<List<String>> getArchivableTripIDs(long staleBefore, long completedBefore, int limit);
+
+    /**
+     * Moves trips to the trip history in one commit. Each trip is checked again first, so a trip that
+     * is no longer archivable, such as a rider's next trip stored under the same id, is left alone.
+     * An archived trip is removed from its driver's accepted trips.
+     * @param staleBefore pending trips requested before this time are archived, Long.MIN_VALUE keeps them
+     * @param completedBefore trips completed before this time are archived, Long.MAX_VALUE archives
+     *                        every completed trip
+     * @return the number of trips archived
+     */
+    Task<Integer> archiveTrips(List<String> docIDs, long staleBefore, long completedBefore, long archivedAt);
+
+    /* LISTEN */
+    /** Listens to a single trip */
+    ListenerRegistration listenTrip(String docID, TripListener listener);
+
+    /** Listens to every trip */
+    ListenerRegistration listenAllTrips(TripQueryListener listener);
+
+    /** Listens to the trips a driver has accepted and not yet arrived at, in queue order */
+    ListenerRegistration listenDriverQueue(String driverID, TripQueryListener listener);
+
+    /**
+     * Listens to one page of the pending trips in a geohash cell, ordered by geohash, creation time
+     * and trip id
+     * @param cell the geohash prefix of the cell
+     * @param startAfter the page starts after this trip, or at the start of the cell if null
+     * @param endAt the page ends at this trip, or after limit trips if null
+     * @param limit the most trips the page holds when it has no end
+     */
+    ListenerRegistration listenPendingTrips(String cell, Trip startAfter, Trip endAt, int limit, TripQueryListener listener);
+}
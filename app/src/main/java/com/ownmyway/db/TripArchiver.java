@@ -0,0 +1,72 @@
+package com.ownmyway.db;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.Collections;
+
+/**
+ * Keeps the trips collection down to trips still under way by moving the ones that are over to the
+ * trip history. A sweep archives trips completed more than PAYMENT_GRACE_MILLIS ago, so the rider
+ * is never paying for a trip that disappears, and pending trips nobody accepted for longer than
+ * STALE_AFTER_MILLIS. It works in batches, one commit per batch, until none are left or it has
+ * archived MAX_BATCHES_PER_SWEEP batches. Only one sweep runs at a time.
+ */
+class TripArchiver {
+
+    /** Pending trips requested this long ago are abandoned */
+    static final long STALE_AFTER_MILLIS = 24 * 60 * 60 * 1000;
+    /** Completed trips are left this long for the rider to pay, they are archived right away once paid */
+    static final long PAYMENT_GRACE_MILLIS = 60 * 60 * 1000;
+    /** An archived trip takes up to four writes, Firestore commits at most 500 */
+    static final int BATCH_SIZE = 100;
+    static final int MAX_BATCHES_PER_SWEEP = 10;
+
+    private final StorageBackend backend;
+    private Task<Integer> sweep;
+
+    TripArchiver(StorageBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Archives a completed trip once its rider has paid, without waiting for the grace period.
+     * A trip that is not completed is left alone.
+     * @param docID the document id of the trip
+     * @return the task that completes once the trip is archived
+     */
+    Task<Void> archive(String docID) {
+        return backend.archiveTrips(Collections.singletonList(docID), Long.MIN_VALUE, Long.MAX_VALUE,
+                System.currentTimeMillis())
+                .onSuccessTask(archived -> Tasks.forResult(null));
+    }
+
+    /**
+     * Archives paid for and abandoned trips, or joins the sweep already running
+     * @return the task that completes with the number of trips archived
+     */
+    synchronized Task<Integer> sweep() {
+        if (sweep == null || sweep.isComplete()) {
+            long now = System.currentTimeMillis();
+            sweep = sweepBatches(now - STALE_AFTER_MILLIS, now - PAYMENT_GRACE_MILLIS, 0, 0);
+        }
+        return sweep;
+    }
+
+    private Task<Integer> sweepBatches(long staleBefore, long completedBefore, int batches, int archived) {
+        return backend.getArchivableTripIDs(staleBefore, completedBefore, BATCH_SIZE).onSuccessTask(docIDs -> {
+            if (docIDs.isEmpty()) {
+                return Tasks.forResult(archived);
+            }
+            return backend.archiveTrips(docIDs, staleBefore, completedBefore, System.currentTimeMillis())
+                    .onSuccessTask(count -> {
+                        int total = archived + count;
+                        // A short batch was the last one, and a batch where nothing could be archived would be read again
+                        if (docIDs.size() < BATCH_SIZE || count == 0 || batches + 1 >= MAX_BATCHES_PER_SWEEP) {
+                            return Tasks.forResult(total);
+                        }
+                        return sweepBatches(staleBefore, completedBefore, batches + 1, total);
+                    });
+        });
+    }
+}
@@ -0,0 +1,11 @@
+package com.ownmyway.db;
+
+/**
+ * Thrown when a trip write is rejected because the trip is no longer in the status the write
+ * expected, for example when another driver accepted the trip first.
+ */
+public class TripConflictException extends Exception {
+    public TripConflictException(String message) {
+        super(message);
+    }
+}
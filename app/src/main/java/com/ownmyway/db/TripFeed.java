@@ -0,0 +1,116 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripDelta;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keyed, in-memory copy of the trips matched by one query. Each snapshot is applied through its
+ * document changes, so only the trips that were added, modified or removed are deserialized and
+ * reported, instead of re-reading every document on every change. Changes that could not be
+ * delivered are reported again with the next snapshot.
+ */
+class TripFeed {
+    private final LinkedHashMap<String, Trip> trips = new LinkedHashMap<>();
+    private final LinkedHashSet<String> undelivered = new LinkedHashSet<>();
+
+    /**
+     * Applies the document changes of a snapshot
+     * @param snapshot the latest snapshot of the query
+     * @return the trips that changed in this snapshot, and those of earlier snapshots that were not delivered
+     */
+    TripDelta apply(QuerySnapshot snapshot) {
+        TripDelta delta = new TripDelta();
+        Set<String> changed = new HashSet<>();
+        for (DocumentChange change : snapshot.getDocumentChanges()) {
+            String docID = change.getDocument().getId();
+            changed.add(docID);
+            switch (change.getType()) {
+                case ADDED:
+                case MODIFIED:
+                    Trip trip = ModelCodec.toTrip(change.getDocument());
+                    trips.put(docID, trip);
+                    delta.upsert(trip);
+                    break;
+                case REMOVED:
+                    trips.remove(docID);
+                    delta.remove(docID);
+                    break;
+            }
+        }
+        for (String docID : undelivered) {
+            if (changed.contains(docID)) {
+                continue;
+            }
+            Trip trip = trips.get(docID);
+            if (trip != null) {
+                delta.upsert(trip);
+            } else {
+                delta.remove(docID);
+            }
+        }
+        undelivered.clear();
+        return delta;
+    }
+
+    /**
+     * Records that the changes of a snapshot could not be delivered, so they are sent with the next one
+     * @param delta the changes returned by apply
+     */
+    void failed(TripDelta delta) {
+        for (Trip trip : delta.getUpserted()) {
+            undelivered.add(trip.getRiderID());
+        }
+        undelivered.addAll(delta.getRemovedIds());
+    }
+
+    /**
+     * Drops the trips that were deleted while their routes were read, instead of delivering them
+     * without a route. A later snapshot reports the deletion, or the trip again if it is back.
+     * @param delta the changes returned by apply
+     * @param deletedIDs the document ids of the trips whose route is gone
+     * @return the changes to deliver
+     */
+    TripDelta dropDeleted(TripDelta delta, List<String> deletedIDs) {
+        if (deletedIDs.isEmpty()) {
+            return delta;
+        }
+        TripDelta delivered = new TripDelta();
+        for (String docID : delta.getRemovedIds()) {
+            delivered.remove(docID);
+        }
+        for (Trip trip : delta.getUpserted()) {
+            if (deletedIDs.contains(trip.getRiderID())) {
+                trips.remove(trip.getRiderID());
+                delivered.remove(trip.getRiderID());
+            } else {
+                delivered.upsert(trip);
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * The trips of a snapshot already applied to the feed, in the order of the query
+     * @param snapshot the latest snapshot of the query
+     */
+    List<Trip> ordered(QuerySnapshot snapshot) {
+        List<Trip> ordered = new ArrayList<>(snapshot.size());
+        for (DocumentSnapshot document : snapshot.getDocuments()) {
+            Trip trip = trips.get(document.getId());
+            if (trip != null) {
+                ordered.add(trip);
+            }
+        }
+        return ordered;
+    }
+}
@@ -0,0 +1,16 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.TripDelta;
+
+/**
+ * Listener for live trip queries. Receives the trips that changed since the last call, the first
+ * call contains every trip the query currently matches.
+ */
+public interface TripFeedListener {
+    /**
+     * Called for every change of the query
+     * @param delta the trips that were added, modified or removed
+     * @param err can take in an error
+     */
+    void onTripDelta(TripDelta delta, Error err);
+}
@@ -0,0 +1,98 @@
+package com.ownmyway.db;
+
+import com.ownmyway.App;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Owns the listeners on single trips. At most one listener is kept per trip,
+ * so asking to watch a trip that is already watched reuses the live listener instead of stacking
+ * another one, and every status change reaches the model exactly once.
+ */
+public class TripListenerManager {
+
+    private final StorageBackend backend;
+    private final HashMap<String, Watch> watches = new HashMap<>();
+
+    TripListenerManager(StorageBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Makes the trip the one the session listens to. Listeners on any other trip are detached and
+     * a listener is attached to this trip unless it already has one.
+     * @param docID the document id of the session trip
+     * @return the registration of the trip's listener, the same object while the trip stays watched
+     */
+    public synchronized ListenerRegistration watchSessionTrip(String docID) {
+        for (String watchedID : new ArrayList<>(watches.keySet())) {
+            if (!watchedID.equals(docID)) {
+                detach(watchedID);
+            }
+        }
+
+        Watch watch = watches.get(docID);
+        if (watch == null) {
+            watch = new Watch(docID);
+            watch.registration = backend.listenTrip(docID, (trip, e) -> {
+                if (e == null) {
+                    App.getModel().handleTripStatusChanges(docID, trip);
+                }
+            });
+            watches.put(docID, watch);
+        }
+        return watch;
+    }
+
+    /**
+     * Detaches the listener of a trip, if it has one
+     * @param docID the document id of the trip
+     */
+    public synchronized void detach(String docID) {
+        Watch watch = watches.remove(docID);
+        if (watch != null) {
+            watch.registration.remove();
+        }
+    }
+
+    /**
+     * Detaches every trip listener
+     */
+    public synchronized void detachAll() {
+        for (Watch watch : watches.values()) {
+            watch.registration.remove();
+        }
+        watches.clear();
+    }
+
+    /**
+     * Number of trip document listeners currently attached
+     */
+    public synchronized int getLiveListenerCount() {
+        return watches.size();
+    }
+
+    /**
+     * Registration handed out for a watched trip. Removing it detaches the trip's listener, and
+     * does nothing once the manager has already swapped to another trip.
+     */
+    private class Watch implements ListenerRegistration {
+        private final String docID;
+        private ListenerRegistration registration;
+
+        private Watch(String docID) {
+            this.docID = docID;
+        }
+
+        @Override
+        public void remove() {
+            synchronized (TripListenerManager.this) {
+                if (watches.get(docID) == this) {
+                    detach(docID);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.ownmyway.db;
+
+import android.util.Log;
+
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripDelta;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Pages through the pending trips near a location, so the first trips can be shown without reading
+ * every trip in the area. The geohash cells covering the area are read one at a time, the center
+ * cell first, and each cell is read in pages ordered by geohash, creation time and trip id, each
+ * page starting after the last trip of the page before it. Every loaded page stays live, so trips
+ * that are taken or cancelled disappear. Removing the pager detaches the listeners of every page.
+ */
+public class TripPager implements ListenerRegistration {
+
+    private static final String TAG = "In Database Manager";
+
+    private final StorageBackend backend;
+    private final List<String> cells;
+    private final int pageSize;
+    private final TripFeedListener listener;
+    private final List<Page> pages = new ArrayList<>();
+    private int cellIndex;
+    private boolean exhausted;
+    private boolean removed;
+
+    TripPager(StorageBackend backend, List<String> cells, int pageSize, TripFeedListener listener) {
+        this.backend = backend;
+        this.cells = cells;
+        this.pageSize = pageSize;
+        this.listener = listener;
+        openPage(new Page(cells.get(cellIndex), null, null));
+    }
+
+    /**
+     * Whether there may be more trips to load
+     */
+    public synchronized boolean hasMore() {
+        return !exhausted;
+    }
+
+    /**
+     * Loads the next page of trips. Does nothing while the last page is still loading or once every
+     * cell has been read, so it is safe to call on every scroll event.
+     */
+    public synchronized void loadNextPage() {
+        if (removed || exhausted) {
+            return;
+        }
+        Page last = pages.get(pages.size() - 1);
+        if (last.trips == null) {
+            return;
+        }
+
+        if (last.trips.size() < pageSize) {
+            // The cell has no more trips, continue with the next closest cell
+            if (cellIndex + 1 >= cells.size()) {
+                exhausted = true;
+                return;
+            }
+            cellIndex++;
+            openPage(new Page(cells.get(cellIndex), null, null));
+            return;
+        }
+
+        // Pin the full page to the trips it holds now. Otherwise a trip requested later could push
+        // the page's last trip past its limit, and the next page, which starts after that trip,
+        // would never show it.
+        Trip pageEnd = last.trips.get(last.trips.size() - 1);
+        Page pinned = new Page(last.cell, last.startAfter, pageEnd);
+        pinned.replaced = last.trips;
+        last.registration.remove();
+        pages.set(pages.size() - 1, pinned);
+        attach(pinned);
+
+        openPage(new Page(last.cell, pageEnd, null));
+    }
+
+    /**
+     * Detaches the listeners of every loaded page
+     */
+    @Override
+    public synchronized void remove() {
+        removed = true;
+        for (Page page : pages) {
+            page.registration.remove();
+        }
+        pages.clear();
+    }
+
+    private void openPage(Page page) {
+        pages.add(page);
+        attach(page);
+    }
+
+    private void attach(Page page) {
+        page.registration = backend.listenPendingTrips(page.cell, page.startAfter, page.endAt, pageSize,
+                (trips, delta, e) -> dispatch(page, trips, delta, e));
+    }
+
+    private void dispatch(Page page, List<Trip> trips, TripDelta delta, Exception e) {
+        synchronized (this) {
+            if (removed || !pages.contains(page)) {
+                return;
+            }
+            if (e == null) {
+                boolean first = page.trips == null;
+                if (page.replaced != null) {
+                    delta = replace(page.replaced, trips);
+                    page.replaced = null;
+                }
+                page.trips = trips;
+                // The first result of a page is delivered even when empty, so the caller can render
+                // and knows the page is read
+                if (delta.isEmpty() && !first) {
+                    return;
+                }
+            }
+        }
+        if (e != null) {
+            Log.d(TAG, Objects.requireNonNull(e.getMessage()));
+            listener.onTripDelta(null, new Error("Could not find trips"));
+        } else {
+            listener.onTripDelta(delta, null);
+        }
+    }
+
+    /**
+     * The changes between the trips a page held before it was pinned and the trips of its new
+     * listener. Every trip is upserted, since the new listener cannot tell which of them changed.
+     */
+    private static TripDelta replace(List<Trip> previous, List<Trip> trips) {
+        TripDelta delta = new TripDelta();
+        Set<String> current = new HashSet<>();
+        for (Trip trip : trips) {
+            current.add(trip.getRiderID());
+            delta.upsert(trip);
+        }
+        for (Trip trip : previous) {
+            if (!current.contains(trip.getRiderID())) {
+                delta.remove(trip.getRiderID());
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * One page of a cell. The last page of the pager is bounded by a limit, earlier pages are
+     * bounded by the last trip they held when the next page was loaded.
+     */
+    private static class Page {
+        private final String cell;
+        private final Trip startAfter;
+        private final Trip endAt;
+        private ListenerRegistration registration;
+        private List<Trip> trips;
+        private List<Trip> replaced;
+
+        private Page(String cell, Trip startAfter, Trip endAt) {
+            this.cell = cell;
+            this.startAfter = startAfter;
+            this.endAt = endAt;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripRoute;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.CollectionReference;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the routes of trips, each once. A trip's route never changes after it is requested, so
+ * once read it is kept in memory and every later snapshot of the trip, which only carries its
+ * status fields, is completed from memory. The least recently used route is evicted once the
+ * cache is full.
+ */
+class TripRouteCache {
+    private final CollectionReference collectionRoute;
+    private final LinkedHashMap<String, CachedRoute> entries;
+
+    TripRouteCache(CollectionReference collectionRoute, int maxEntries) {
+        this.collectionRoute = collectionRoute;
+        // Access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, CachedRoute>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRoute> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Sets the route on every trip read without one. Trips whose route is cached are completed
+     * right away and the returned task is already complete, the other routes are read in parallel.
+     * Trips stored before routes were split out already have their route and are left as they are.
+     * A trip whose route does not exist, because the trip was deleted between the read of the trip
+     * and the read of its route, is left without one and reported, so it can be treated as deleted.
+     * @param trips the trips to complete
+     * @return a task that completes with the document ids of the trips left without a route
+     */
+    Task<List<String>> fill(List<Trip> trips) {
+        List<Task<TripRoute>> reads = new ArrayList<>();
+        for (Trip trip : trips) {
+            if (trip.getStartUserLocation() != null) {
+                continue;
+            }
+            String docID = trip.getRiderID();
+            Task<TripRoute> read = get(docID, trip.getCreatedAt());
+            if (read.isComplete() && read.isSuccessful()) {
+                apply(docID, read, trip);
+            } else {
+                reads.add(read.onSuccessTask(route -> {
+                    apply(docID, read, trip);
+                    return Tasks.forResult(route);
+                }));
+            }
+        }
+        if (reads.isEmpty()) {
+            return Tasks.forResult(withoutRoute(trips));
+        }
+        return Tasks.whenAll(reads).onSuccessTask(aVoid -> Tasks.forResult(withoutRoute(trips)));
+    }
+
+    private static List<String> withoutRoute(List<Trip> trips) {
+        List<String> docIDs = new ArrayList<>();
+        for (Trip trip : trips) {
+            if (trip.getStartUserLocation() == null) {
+                docIDs.add(trip.getRiderID());
+            }
+        }
+        return docIDs;
+    }
+
+    /**
+     * Caches the route of a trip that was just written
+     * @param docID the document id of the trip
+     * @param route the route of the trip
+     */
+    synchronized void put(String docID, TripRoute route) {
+        entries.put(docID, new CachedRoute(route.getCreatedAt(), Tasks.forResult(route)));
+    }
+
+    /**
+     * Drops the route of a trip that was deleted
+     * @param docID the document id of the trip
+     */
+    synchronized void invalidate(String docID) {
+        entries.remove(docID);
+    }
+
+    private synchronized Task<TripRoute> get(String docID, long createdAt) {
+        CachedRoute cached = entries.get(docID);
+        if (cached != null && cached.createdAt == createdAt &&
+                !(cached.route.isComplete() && !cached.route.isSuccessful())) {
+            return cached.route;
+        }
+        Task<TripRoute> read = collectionRoute.document(docID).get()
+                .onSuccessTask(documentSnapshot -> Tasks.forResult(ModelCodec.toTripRoute(documentSnapshot)));
+        entries.put(docID, new CachedRoute(createdAt, read));
+        return read;
+    }
+
+    private void apply(String docID, Task<TripRoute> read, Trip trip) {
+        TripRoute route = read.getResult();
+        if (route != null) {
+            route.applyTo(trip);
+        } else {
+            forget(docID, read);
+        }
+    }
+
+    /**
+     * Drops a read that found no route, so a trip written later under the same id is read again
+     */
+    private synchronized void forget(String docID, Task<TripRoute> read) {
+        CachedRoute cached = entries.get(docID);
+        if (cached != null && cached.route == read) {
+            entries.remove(docID);
+        }
+    }
+
+    /**
+     * The read of a route and the trip it belongs to, a rider's trips all share one document id
+     */
+    private static class CachedRoute {
+        private final long createdAt;
+        private final Task<TripRoute> route;
+
+        private CachedRoute(long createdAt, Task<TripRoute> route) {
+            this.createdAt = createdAt;
+            this.route = route;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.ownmyway.db;
+
+import com.ownmyway.model.User;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bounded in-memory cache of user profiles, so looking up the same rider or driver several times
+ * during a trip does not go back to Firebase each time. Entries expire after a fixed time and the
+ * least recently used entry is evicted once the cache is full. DBManager invalidates an entry
+ * whenever it writes to that profile.
+ * The cache keeps its own copy of each profile and hands out copies, so callers that change the
+ * profile they got, to write it back, do not change what other callers are served.
+ * @param <T> the type of user held by the cache
+ */
+class UserCache<T extends User> {
+    private final long ttlMillis;
+    private final UnaryOperator<T> copy;
+    private final LinkedHashMap<String, CachedUser<T>> entries;
+
+    UserCache(int maxEntries, long ttlMillis, UnaryOperator<T> copy) {
+        this.ttlMillis = ttlMillis;
+        this.copy = copy;
+        // Access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, CachedUser<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedUser<T>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get a cached profile
+     * @param docID the doc id of the user
+     * @return a copy of the profile, or null if it is not cached or has expired
+     */
+    synchronized T get(String docID) {
+        CachedUser<T> cached = entries.get(docID);
+        if (cached == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.loadedAt > ttlMillis) {
+            entries.remove(docID);
+            return null;
+        }
+        return copy.apply(cached.user);
+    }
+
+    /**
+     * Cache a profile that was just read
+     * @param docID the doc id of the user
+     * @param user the profile, nothing is cached if null
+     */
+    synchronized void put(String docID, T user) {
+        if (user != null) {
+            entries.put(docID, new CachedUser<>(copy.apply(user)));
+        }
+    }
+
+    /**
+     * Drops a profile, so the next lookup reads it again
+     * @param docID the doc id of the user
+     */
+    synchronized void invalidate(String docID) {
+        entries.remove(docID);
+    }
+
+    /**
+     * Drops every profile, used when the user logs out
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * A cached profile and when it was read
+     */
+    private static class CachedUser<T> {
+        private final long loadedAt = System.currentTimeMillis();
+        private final T user;
+
+        private CachedUser(T user) {
+            this.user = user;
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package com.ownmyway.model;
 
 import com.ownmyway.App;
-import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.firebase.firestore.ListenerRegistration;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
@@ -21,6 +23,7 @@ public class ApplicationModel extends Observable {
     private List<Trip> driverAcceptedPendingRides;
     private List<Observer> obs = new ArrayList<>();
     private ListenerRegistration tripListener;
+    private LatLngBounds tripSearchBounds;
 
 
     /**
@@ -40,6 +43,58 @@ public class ApplicationModel extends Observable {
         notifyObservers();
     }
 
+    /**
+     * Applies the trips that changed to the current sessions list of trips, so only the changed
+     * trips are touched instead of replacing the whole list. If the delta carries an order the
+     * list is put in it, otherwise new trips go at the end. The first delta is applied even if it is
+     * empty, so observers learn the search found nothing.
+     * @param delta the trips that were added, modified or removed
+     */
+    public void applySessionTripDelta(TripDelta delta) {
+        if (delta == null || (delta.isEmpty() && sessionTripList != null)) {
+            return;
+        }
+        if (sessionTripList == null) {
+            sessionTripList = new ArrayList<>();
+        }
+        for (String tripID : delta.getRemovedIds()) {
+            int index = indexOfTrip(tripID);
+            if (index >= 0) {
+                sessionTripList.remove(index);
+            }
+        }
+        for (Trip trip : delta.getUpserted()) {
+            int index = indexOfTrip(trip.getRiderID());
+            if (index >= 0) {
+                sessionTripList.set(index, trip);
+            } else {
+                sessionTripList.add(trip);
+            }
+        }
+        if (delta.getOrder() != null) {
+            HashMap<String, Integer> rank = new HashMap<>();
+            for (String tripID : delta.getOrder()) {
+                rank.put(tripID, rank.size());
+            }
+            // Trips missing from the order keep their relative place after the ordered ones
+            sessionTripList.sort(Comparator.comparingInt(trip -> {
+                Integer position = rank.get(trip.getRiderID());
+                return position != null ? position : Integer.MAX_VALUE;
+            }));
+        }
+        setChanged();
+        notifyObservers();
+    }
+
+    private int indexOfTrip(String tripID) {
+        for (int i = 0; i < sessionTripList.size(); i++) {
+            if (sessionTripList.get(i).getRiderID().equals(tripID)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Getting driverAcceptedPendingRides
      */
@@ -57,6 +112,22 @@ public class ApplicationModel extends Observable {
         notifyObservers();
     }
 
+    /**
+     * Getting the map area the driver last looked at, used to search for trips
+     */
+    public LatLngBounds getTripSearchBounds() {
+        return tripSearchBounds;
+    }
+
+    /**
+     * Setting the map area the driver last looked at. Observers are not notified, nothing is shown
+     * from it until the driver searches for trips.
+     * @param tripSearchBounds the visible map area
+     */
+    public void setTripSearchBounds(LatLngBounds tripSearchBounds) {
+        this.tripSearchBounds = tripSearchBounds;
+    }
+
     /**
      * Getting the sessions user
      */
@@ -95,6 +166,24 @@ public class ApplicationModel extends Observable {
         notifyObservers();
     }
 
+    /**
+     * Moves the session trip to a status that was written to the database and notifies all the views.
+     * Nothing changes if the trip is no longer the session trip by then.
+     * @param trip the trip that was moved
+     * @param status the status it was moved to
+     */
+    public void setSessionTripStatus(Trip trip, Trip.STATUS status) {
+        if (trip == null || trip != sessionTrip) {
+            return;
+        }
+        trip.setStatus(status);
+        if (status == Trip.STATUS.COMPLETED && trip.getCompletedAt() == 0) {
+            trip.setCompletedAt(System.currentTimeMillis());
+        }
+        setChanged();
+        notifyObservers();
+    }
+
     /**
      * List of observers for the model
      */
@@ -135,10 +224,14 @@ public class ApplicationModel extends Observable {
     }
 
     /**
-     *  Setting a trip listener to a trip
+     *  Setting a trip listener to a trip. A previous, different listener is removed so listeners
+     *  never pile up on the session trip.
      * @param tripListener the listener for the trip
      */
     public void setTripListener(ListenerRegistration tripListener) {
+        if (this.tripListener != null && this.tripListener != tripListener) {
+            this.tripListener.remove();
+        }
         this.tripListener = tripListener;
     }
 
@@ -146,11 +239,7 @@ public class ApplicationModel extends Observable {
      * Removing the Trip listener
      */
     private void detachTripListener() {
-        ListenerRegistration lr = this.getTripListener();
-        if (lr != null) {
-            lr.remove();
-            this.setTripListener(null);
-        }
+        this.setTripListener(null);
     }
 
     /**
@@ -158,57 +247,59 @@ public class ApplicationModel extends Observable {
      */
     public void clearModelForLogout() {
         this.sessionUser = null;
-        this.tripListener = null;
+        this.detachTripListener();
         this.sessionTrip = null;
+        this.tripSearchBounds = null;
     }
 
-    public void handleTripStatusChanges(String riderID, DocumentSnapshot documentSnapshot) {
-        if (documentSnapshot != null) {
-            Trip updatedTrip = documentSnapshot.toObject(Trip.class);
-            if (updatedTrip != null) {
-                Trip.STATUS newStatus = updatedTrip.getStatus();
-                if (updatedTrip.nextStatusValid(newStatus)) {
-                    Trip currentTrip = App.getModel().getSessionTrip();
-                    if (currentTrip != null) {
-                        if (App.getModel().getSessionUser().getType() == User.TYPE.RIDER) {
-                            if (newStatus == Trip.STATUS.DRIVER_ACCEPT) {
-                                currentTrip.setDriverID(updatedTrip.getDriverID());
-                            }
-                            currentTrip.setStatus(newStatus);
-                            setSessionTrip(currentTrip);
-                        } else if (App.getModel().getSessionUser().getType() == User.TYPE.DRIVER) {
-                            // Only modify driver status if currentTrip is what got updated in FB
-                            if (updatedTrip.getRiderID().equals(currentTrip.getRiderID())) {
-                                setSessionTrip(updatedTrip);
-                            }
+    /**
+     * Applies a change of the session trip read by its listener
+     * @param riderID the document id of the trip
+     * @param updatedTrip the latest trip, or null if it was deleted
+     */
+    public void handleTripStatusChanges(String riderID, Trip updatedTrip) {
+        if (updatedTrip != null) {
+            Trip.STATUS newStatus = updatedTrip.getStatus();
+            if (updatedTrip.nextStatusValid(newStatus)) {
+                Trip currentTrip = App.getModel().getSessionTrip();
+                if (currentTrip != null) {
+                    if (App.getModel().getSessionUser().getType() == User.TYPE.RIDER) {
+                        if (newStatus == Trip.STATUS.DRIVER_ACCEPT) {
+                            currentTrip.setDriverID(updatedTrip.getDriverID());
+                        }
+                        currentTrip.setStatus(newStatus);
+                        setSessionTrip(currentTrip);
+                    } else if (App.getModel().getSessionUser().getType() == User.TYPE.DRIVER) {
+                        // Only modify driver status if currentTrip is what got updated in FB
+                        if (updatedTrip.getRiderID().equals(currentTrip.getRiderID())) {
+                            setSessionTrip(updatedTrip);
                         }
                     }
                 }
-            } else {
-                User sessionUser = App.getModel().getSessionUser();
-                if (sessionUser != null && sessionUser.getType() == User.TYPE.DRIVER) {
-                    // If driver profile is loaded, get the next session trip from the queue
-                    Driver driverSessionUser = (Driver) sessionUser;
-                    List<String> tripIds = driverSessionUser.getAcceptedTripIds();
-                    // Trip is null, so a user has just cancelled. So need to remove from local trip queue.
-                    tripIds.remove(riderID);
-
-                    if (tripIds.size() > 0) {
-                        String nxtTripID = tripIds.get(0);
-                        App.getDbManager().getTrip(nxtTripID, (resultData, err) -> {
-                            if (resultData != null) {
-                                Trip nxtTrip = (Trip) resultData.get("trip");
-                                if (nxtTrip != null) {
-                                    App.getModel().setSessionTrip(nxtTrip);
-                                } else { // Edge case: last rider in queue cancels offer
-                                    setSessionTrip(null);
-                                }}}, false);
-                    } else {
-                        setSessionTrip(null);
-                    }
-                } else { // Edge case: driver has cancelled the trip
+            }
+        } else {
+            User sessionUser = App.getModel().getSessionUser();
+            if (sessionUser != null && sessionUser.getType() == User.TYPE.DRIVER) {
+                // If driver profile is loaded, get the next session trip from the queue
+                Driver driverSessionUser = (Driver) sessionUser;
+                List<String> tripIds = driverSessionUser.getAcceptedTripIds();
+                // Trip is null, so a user has just cancelled. So need to remove from local trip queue.
+                tripIds.remove(riderID);
+
+                if (tripIds.size() > 0) {
+                    String nxtTripID = tripIds.get(0);
+                    App.getDbManager().getTrip(nxtTripID, true).addOnSuccessListener(nxtTrip -> {
+                        if (nxtTrip != null) {
+                            App.getModel().setSessionTrip(nxtTrip);
+                        } else { // Edge case: last rider in queue cancels offer
+                            setSessionTrip(null);
+                        }
+                    });
+                } else {
                     setSessionTrip(null);
                 }
+            } else { // Edge case: driver has cancelled the trip
+                setSessionTrip(null);
             }
         }
     }
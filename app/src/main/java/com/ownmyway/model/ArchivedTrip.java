@@ -0,0 +1,165 @@
+package com.ownmyway.model;
+
+/**
+ * A trip that is over, kept in the trip history. Only what is needed to look back at the trip is
+ * kept: who took it, where it went, what it cost and how it ended. The trip is removed from the
+ * trips collection once archived, so live queries only scan trips that are still under way.
+ */
+public class ArchivedTrip {
+    private String riderID;
+    private String driverID;
+    private String riderUserName;
+    private String status;
+    private double fareOffering;
+    private double startLatitude;
+    private double startLongitude;
+    private double endLatitude;
+    private double endLongitude;
+    private long createdAt;
+    private long archivedAt;
+
+    /**
+     * Empty constructor used for Firebase
+     */
+    public ArchivedTrip() {}
+
+    /**
+     * Takes what is kept of a trip
+     * @param trip the trip with its route
+     * @param archivedAt the time the trip is archived
+     */
+    public ArchivedTrip(Trip trip, long archivedAt) {
+        this.riderID = trip.getRiderID();
+        this.driverID = trip.getDriverID();
+        this.riderUserName = trip.getRiderUserName();
+        this.status = trip.getStatus() != null ? trip.getStatus().name() : null;
+        this.fareOffering = trip.getFareOffering();
+        if (trip.getStartUserLocation() != null) {
+            this.startLatitude = trip.getStartUserLocation().getLatitude();
+            this.startLongitude = trip.getStartUserLocation().getLongitude();
+        }
+        if (trip.getEndUserLocation() != null) {
+            this.endLatitude = trip.getEndUserLocation().getLatitude();
+            this.endLongitude = trip.getEndUserLocation().getLongitude();
+        }
+        this.createdAt = trip.getCreatedAt();
+        this.archivedAt = archivedAt;
+    }
+
+    /**
+     * Whether a trip is done with and should be archived: it was completed before completedBefore,
+     * so its rider has had time to pay, or it was requested before staleBefore and no driver ever
+     * accepted it. Trips a driver is working on are never archived, however old.
+     * A completed trip stored before completedAt was recorded counts as completed when requested.
+     * @param trip the trip
+     * @param staleBefore pending trips requested before this time are abandoned
+     * @param completedBefore trips completed before this time are paid for
+     */
+    public static boolean isArchivable(Trip trip, long staleBefore, long completedBefore) {
+        if (trip.getStatus() == Trip.STATUS.COMPLETED) {
+            return trip.getCompletedAt() != 0 ? trip.getCompletedAt() < completedBefore
+                    : trip.getCreatedAt() < staleBefore || completedBefore == Long.MAX_VALUE;
+        }
+        return trip.getStatus() == Trip.STATUS.PENDING && trip.getCreatedAt() < staleBefore;
+    }
+
+    /**
+     * The document id of an archived trip. A rider's trips all share the rider's id in the trips
+     * collection, so the time the trip was requested tells them apart in the history.
+     * @param trip the trip
+     */
+    public static String historyID(Trip trip) {
+        return trip.getRiderID() + "_" + trip.getCreatedAt();
+    }
+
+    public String getRiderID() {
+        return riderID;
+    }
+
+    public void setRiderID(String riderID) {
+        this.riderID = riderID;
+    }
+
+    public String getDriverID() {
+        return driverID;
+    }
+
+    public void setDriverID(String driverID) {
+        this.driverID = driverID;
+    }
+
+    public String getRiderUserName() {
+        return riderUserName;
+    }
+
+    public void setRiderUserName(String riderUserName) {
+        this.riderUserName = riderUserName;
+    }
+
+    /**
+     * The status the trip was in when archived, COMPLETED unless it was abandoned
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public double getFareOffering() {
+        return fareOffering;
+    }
+
+    public void setFareOffering(double fareOffering) {
+        this.fareOffering = fareOffering;
+    }
+
+    public double getStartLatitude() {
+        return startLatitude;
+    }
+
+    public void setStartLatitude(double startLatitude) {
+        this.startLatitude = startLatitude;
+    }
+
+    public double getStartLongitude() {
+        return startLongitude;
+    }
+
+    public void setStartLongitude(double startLongitude) {
+        this.startLongitude = startLongitude;
+    }
+
+    public double getEndLatitude() {
+        return endLatitude;
+    }
+
+    public void setEndLatitude(double endLatitude) {
+        this.endLatitude = endLatitude;
+    }
+
+    public double getEndLongitude() {
+        return endLongitude;
+    }
+
+    public void setEndLongitude(double endLongitude) {
+        this.endLongitude = endLongitude;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public long getArchivedAt() {
+        return archivedAt;
+    }
+
+    public void setArchivedAt(long archivedAt) {
+        this.archivedAt = archivedAt;
+    }
+}
@@ -62,6 +62,17 @@ public class Driver extends User {
         this.rating = rating;
     }
 
+    /**
+     * Rating algorithm, the percentage of thumbs up out of all ratings
+     * @param numThumbsUp,numThumbsDown the number of ratings the driver received
+     */
+    public static double computeRating(double numThumbsUp, double numThumbsDown) {
+        if (numThumbsUp + numThumbsDown == 0) {
+            return 0;
+        }
+        return (numThumbsUp / (numThumbsDown + numThumbsUp)) * 100;
+    }
+
     public String getDocID() {
         return docID;
     }
@@ -0,0 +1,49 @@
+package com.ownmyway.model;
+
+/**
+ * A latitude/longitude box holding every location within a radius of a center, built by
+ * UserLocation.boundsWithin. A location outside the box is certainly farther than the radius, a
+ * location inside it may still be farther and has to be measured. Boxes that reach a pole span
+ * every longitude, and boxes that cross the antimeridian wrap around it.
+ */
+public final class GeoBounds {
+    private final double south;
+    private final double north;
+    private final double centerLongitude;
+    private final double longitudeSpan;
+
+    /**
+     * @param latitude,longitude the center, in radians
+     * @param cosLatitude the cosine of the center's latitude
+     * @param angularRadius the radius divided by the earth's radius
+     */
+    GeoBounds(double latitude, double longitude, double cosLatitude, double angularRadius) {
+        this.south = latitude - angularRadius;
+        this.north = latitude + angularRadius;
+        this.centerLongitude = longitude;
+        double sinRadius = Math.sin(Math.min(angularRadius, Math.PI / 2));
+        if (north >= Math.PI / 2 || south <= -Math.PI / 2 || sinRadius >= cosLatitude) {
+            // The circle holds a pole, so it reaches every longitude
+            this.longitudeSpan = Math.PI;
+        } else {
+            this.longitudeSpan = Math.asin(sinRadius / cosLatitude);
+        }
+    }
+
+    /**
+     * Whether a location may be within the radius
+     * @param location the location to test
+     * @return false if the location is certainly farther than the radius
+     */
+    public boolean contains(UserLocation location) {
+        double latitude = location.latitudeRadians();
+        if (latitude < south || latitude > north) {
+            return false;
+        }
+        double longitudeDelta = Math.abs(location.longitudeRadians() - centerLongitude);
+        if (longitudeDelta > Math.PI) {
+            longitudeDelta = 2 * Math.PI - longitudeDelta;
+        }
+        return longitudeDelta <= longitudeSpan;
+    }
+}
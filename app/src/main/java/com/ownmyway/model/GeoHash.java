@@ -0,0 +1,166 @@
+package com.ownmyway.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Geohash encoding used to index trips by their start location. A geohash is a base32 string
+ * where every character narrows the cell the point is in, so all points inside a cell share the
+ * cell's hash as a prefix. This lets Firebase answer "trips near me" with a handful of prefix
+ * range queries instead of a scan of the whole Trips collection.
+ */
+public final class GeoHash {
+
+    /** Precision stored on trip documents, roughly a 5m x 5m cell */
+    public static final int STORED_PRECISION = 9;
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final double KM_PER_DEGREE_LATITUDE = 111.19;
+
+    private GeoHash() {}
+
+    /**
+     * Encodes a latitude/longitude pair into a geohash
+     * @param latitude,longitude the point to encode
+     * @param precision the number of characters in the resulting hash
+     * @return the geohash of the cell containing the point
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLng = -180, maxLng = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLng + maxLng) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLng = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLng = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Encodes a location at the precision stored on trip documents
+     * @param location the location to encode
+     */
+    public static String encode(UserLocation location) {
+        return encode(location.getLatitude(), location.getLongitude(), STORED_PRECISION);
+    }
+
+    /**
+     * Height of a cell at the given precision, in degrees of latitude
+     */
+    public static double cellHeightDegrees(int precision) {
+        int latBits = (precision * 5) / 2;
+        return 180.0 / Math.pow(2, latBits);
+    }
+
+    /**
+     * Width of a cell at the given precision, in degrees of longitude
+     */
+    public static double cellWidthDegrees(int precision) {
+        int lngBits = (precision * 5 + 1) / 2;
+        return 360.0 / Math.pow(2, lngBits);
+    }
+
+    /**
+     * Picks the finest precision whose cells are at least radiusKm on every side at the given
+     * latitude. With cells that large, the 3x3 block around the center cell covers the radius.
+     * @param latitude the latitude the search is centered on
+     * @param radiusKm the search radius in kilometers
+     */
+    public static int precisionForRadius(double latitude, double radiusKm) {
+        double cosLat = Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+        for (int precision = STORED_PRECISION; precision > 1; precision--) {
+            double heightKm = cellHeightDegrees(precision) * KM_PER_DEGREE_LATITUDE;
+            double widthKm = cellWidthDegrees(precision) * KM_PER_DEGREE_LATITUDE * cosLat;
+            if (heightKm >= radiusKm && widthKm >= radiusKm) {
+                return precision;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the geohash cells that together cover every point within radiusKm of the center:
+     * the center cell and its (up to) eight neighbours. A radius too large for the block of
+     * one-character cells to cover, a map zoomed out to whole continents, gets all 32 of them.
+     * @param center the center of the search
+     * @param radiusKm the search radius in kilometers
+     * @return the distinct cell prefixes to query, center cell first
+     */
+    public static List<String> coveringCells(UserLocation center, double radiusKm) {
+        double lat = center.getLatitude();
+        double lng = center.getLongitude();
+        int precision = precisionForRadius(lat, radiusKm);
+        double height = cellHeightDegrees(precision);
+        double width = cellWidthDegrees(precision);
+
+        List<String> cells = new ArrayList<>(9);
+        cells.add(encode(lat, lng, precision));
+        double cosLat = Math.max(Math.cos(Math.toRadians(lat)), 0.01);
+        if (precision == 1 && (height * KM_PER_DEGREE_LATITUDE < radiusKm
+                || width * KM_PER_DEGREE_LATITUDE * cosLat < radiusKm)) {
+            for (int i = 0; i < BASE32.length(); i++) {
+                String cell = BASE32.substring(i, i + 1);
+                if (!cells.contains(cell)) {
+                    cells.add(cell);
+                }
+            }
+            return cells;
+        }
+        for (int dLat = -1; dLat <= 1; dLat++) {
+            for (int dLng = -1; dLng <= 1; dLng++) {
+                double cellLat = lat + dLat * height;
+                if (cellLat > 90 || cellLat < -90) {
+                    continue;
+                }
+                double cellLng = wrapLongitude(lng + dLng * width);
+                String cell = encode(cellLat, cellLng, precision);
+                if (!cells.contains(cell)) {
+                    cells.add(cell);
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Upper bound for a prefix range query over geohash strings
+     * @param prefix the cell prefix
+     */
+    public static String rangeEnd(String prefix) {
+        return prefix + "~";
+    }
+
+    private static double wrapLongitude(double lng) {
+        if (lng > 180) return lng - 360;
+        if (lng < -180) return lng + 360;
+        return lng;
+    }
+}
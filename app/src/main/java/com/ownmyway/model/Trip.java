@@ -30,6 +30,10 @@ public class Trip {
     private UserLocation endUserLocation;
     private double fareOffering;
     private String riderUserName;
+    private String geohash;
+    private long queuePosition;
+    private long createdAt;
+    private long completedAt;
 
     /**
      * Empty constructor used for Firebase
@@ -52,6 +56,8 @@ public class Trip {
         this.startUserLocation = startUserLocation;
         this.endUserLocation = endUserLocation;
         this.riderUserName = riderUserName;
+        this.geohash = GeoHash.encode(startUserLocation);
+        this.createdAt = System.currentTimeMillis();
     }
 
     public void setRiderID(String riderID) {
@@ -74,6 +80,17 @@ public class Trip {
         this.startUserLocation = startUserLocation;
     }
 
+    /**
+     * Geohash of the start location, used by Firebase to query trips by area
+     */
+    public String getGeohash() {
+        return geohash;
+    }
+
+    public void setGeohash(String geohash) {
+        this.geohash = geohash;
+    }
+
     public double getFareOffering() {
         return fareOffering;
     }
@@ -82,6 +99,14 @@ public class Trip {
         this.fareOffering = fareOffering;
     }
 
+    public String getDocID() {
+        return docID;
+    }
+
+    public void setDocID(String docID) {
+        this.docID = docID;
+    }
+
     public String getDriverID() {
         return driverID;
     }
@@ -103,6 +128,41 @@ public class Trip {
         this.status = status;
     }
 
+    /**
+     * Position of the trip in its driver's queue. Set to the acceptance time, so trips accepted
+     * later sort after the ones already in the queue.
+     */
+    public long getQueuePosition() {
+        return queuePosition;
+    }
+
+    public void setQueuePosition(long queuePosition) {
+        this.queuePosition = queuePosition;
+    }
+
+    /**
+     * Time the trip was requested, used to page through trips in the order they were requested
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * Time the trip was completed, 0 until then. The rider pays after this, so the trip is only
+     * archived a while later.
+     */
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public void setCompletedAt(long completedAt) {
+        this.completedAt = completedAt;
+    }
+
     public String getRiderUserName() {
         return riderUserName;
     }
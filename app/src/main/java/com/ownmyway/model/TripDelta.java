@@ -0,0 +1,67 @@
+package com.ownmyway.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes between two versions of a list of trips. Trips that were added or modified are
+ * upserted, trips that left the list are referenced by their document id (the rider id). A delta
+ * of a ranked list also carries the new order of the list.
+ */
+public class TripDelta {
+    private final List<Trip> upserted;
+    private final List<String> removedIds;
+    private List<String> order;
+
+    /**
+     * Creates an empty delta
+     */
+    public TripDelta() {
+        this.upserted = new ArrayList<>();
+        this.removedIds = new ArrayList<>();
+    }
+
+    public List<Trip> getUpserted() {
+        return upserted;
+    }
+
+    public List<String> getRemovedIds() {
+        return removedIds;
+    }
+
+    /**
+     * Record a trip that was added or modified
+     * @param trip the new version of the trip
+     */
+    public void upsert(Trip trip) {
+        upserted.add(trip);
+    }
+
+    /**
+     * Record a trip that is no longer part of the list
+     * @param tripID the document id of the trip
+     */
+    public void remove(String tripID) {
+        removedIds.add(tripID);
+    }
+
+    /**
+     * The document ids of every trip in the list after the change, in the order to show them, or
+     * null if the list is not ordered
+     */
+    public List<String> getOrder() {
+        return order;
+    }
+
+    /**
+     * Record the order of the list after the change
+     * @param order the document ids of every trip in the list, in the order to show them
+     */
+    public void setOrder(List<String> order) {
+        this.order = order;
+    }
+
+    public boolean isEmpty() {
+        return upserted.isEmpty() && removedIds.isEmpty() && order == null;
+    }
+}
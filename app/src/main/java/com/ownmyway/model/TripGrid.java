@@ -0,0 +1,232 @@
+package com.ownmyway.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory spatial index of trips by their start location. The map is cut into a uniform grid of
+ * cells a fixed number of degrees wide, and each trip is kept in the cell its start location falls
+ * in. A radius query only looks at the cells overlapping the circle's bounding box, so it costs
+ * the number of trips near the center instead of the number of trips loaded. The index is updated
+ * trip by trip as deltas arrive.
+ * Not thread safe, it is meant to be used on the main thread like the rest of the model.
+ */
+public class TripGrid {
+
+    private static final double KM_PER_DEGREE_LATITUDE = 111.19;
+    /** Slightly less than a degree of latitude by any of our distance formulas, so search boxes never fall short */
+    private static final double MIN_KM_PER_DEGREE = 111.0;
+
+    private final double cellDegrees;
+    private final int rows;
+    private final int columns;
+    private final HashMap<Long, LinkedHashMap<String, Trip>> cells = new HashMap<>();
+    private final HashMap<String, Long> cellOfTrip = new HashMap<>();
+
+    /**
+     * Creates an empty index
+     * @param cellSizeKm the height of a cell in kilometers, about the radius of a typical query
+     */
+    public TripGrid(double cellSizeKm) {
+        // Whole columns around the globe, so the grid wraps seamlessly at the antimeridian
+        this.columns = (int) Math.ceil(360 * KM_PER_DEGREE_LATITUDE / cellSizeKm);
+        this.cellDegrees = 360.0 / columns;
+        this.rows = (int) Math.ceil(180 / cellDegrees);
+    }
+
+    /**
+     * Adds a trip, or moves it if it is already indexed. A trip without a start location is removed.
+     * @param trip the trip, keyed by its document id (the rider id)
+     */
+    public void put(Trip trip) {
+        String tripID = trip.getRiderID();
+        remove(tripID);
+        UserLocation start = trip.getStartUserLocation();
+        if (start == null) {
+            return;
+        }
+        long cell = cell(row(start.getLatitude()), column(start.getLongitude()));
+        LinkedHashMap<String, Trip> trips = cells.get(cell);
+        if (trips == null) {
+            trips = new LinkedHashMap<>();
+            cells.put(cell, trips);
+        }
+        trips.put(tripID, trip);
+        cellOfTrip.put(tripID, cell);
+    }
+
+    /**
+     * Removes a trip
+     * @param tripID the document id of the trip
+     */
+    public void remove(String tripID) {
+        Long cell = cellOfTrip.remove(tripID);
+        if (cell == null) {
+            return;
+        }
+        LinkedHashMap<String, Trip> trips = cells.get(cell);
+        trips.remove(tripID);
+        if (trips.isEmpty()) {
+            cells.remove(cell);
+        }
+    }
+
+    /**
+     * Applies the trips that were added, modified or removed
+     * @param delta the changes of the trip list
+     */
+    public void apply(TripDelta delta) {
+        for (String tripID : delta.getRemovedIds()) {
+            remove(tripID);
+        }
+        for (Trip trip : delta.getUpserted()) {
+            put(trip);
+        }
+    }
+
+    public Trip get(String tripID) {
+        Long cell = cellOfTrip.get(tripID);
+        return cell != null ? cells.get(cell).get(tripID) : null;
+    }
+
+    public int size() {
+        return cellOfTrip.size();
+    }
+
+    public void clear() {
+        cells.clear();
+        cellOfTrip.clear();
+    }
+
+    /**
+     * The trips starting within a radius of a location, in no particular order
+     * @param center the center of the search
+     * @param radiusKm the radius in kilometers
+     */
+    public List<Trip> withinRadius(UserLocation center, double radiusKm) {
+        List<Hit> hits = collect(center, radiusKm);
+        List<Trip> trips = new ArrayList<>(hits.size());
+        for (Hit hit : hits) {
+            trips.add(hit.trip);
+        }
+        return trips;
+    }
+
+    /**
+     * The k trips starting closest to a location, nearest first. The search radius starts at one
+     * cell and doubles until k trips are found or it reaches maxRadiusKm, so fewer than k trips are
+     * returned if there are not that many within maxRadiusKm.
+     * @param center the center of the search
+     * @param k the number of trips wanted
+     * @param maxRadiusKm the largest radius searched, in kilometers
+     */
+    public List<Trip> nearest(UserLocation center, int k, double maxRadiusKm) {
+        double radiusKm = Math.min(cellDegrees * KM_PER_DEGREE_LATITUDE, maxRadiusKm);
+        List<Hit> hits = collect(center, radiusKm);
+        while (hits.size() < k && radiusKm < maxRadiusKm) {
+            radiusKm = Math.min(radiusKm * 2, maxRadiusKm);
+            hits = collect(center, radiusKm);
+        }
+        // Every trip outside the radius is farther than every trip inside it, so the k nearest are
+        // among the hits
+        Collections.sort(hits, (a, b) -> Double.compare(a.distanceKm, b.distanceKm));
+        List<Trip> trips = new ArrayList<>(Math.min(k, hits.size()));
+        for (int i = 0; i < hits.size() && i < k; i++) {
+            trips.add(hits.get(i).trip);
+        }
+        return trips;
+    }
+
+    /**
+     * Measures every trip in the cells overlapping the bounding box of the circle and keeps those in
+     * it. Trips outside the exact bounding box are rejected before they are measured.
+     */
+    private List<Hit> collect(UserLocation center, double radiusKm) {
+        List<Hit> hits = new ArrayList<>();
+        GeoBounds bounds = center.boundsWithin(radiusKm);
+        double latitudeSpan = radiusKm / MIN_KM_PER_DEGREE;
+        double south = Math.max(-90, center.getLatitude() - latitudeSpan);
+        double north = Math.min(90, center.getLatitude() + latitudeSpan);
+        // Degrees of longitude shrink towards the poles, so the widest span is at the poleward edge
+        double cos = Math.cos(Math.toRadians(Math.max(Math.abs(south), Math.abs(north))));
+        double longitudeSpan = cos > 0 ? radiusKm / (MIN_KM_PER_DEGREE * cos) : 360;
+
+        int firstRow = row(south);
+        int lastRow = row(north);
+        int firstColumn = 0;
+        int columnCount = columns;
+        if (longitudeSpan < 180) {
+            firstColumn = column(center.getLongitude() - longitudeSpan);
+            columnCount = Math.min(columns,
+                    (int) Math.floor((center.getLongitude() + longitudeSpan + 180) / cellDegrees)
+                            - (int) Math.floor((center.getLongitude() - longitudeSpan + 180) / cellDegrees) + 1);
+        }
+
+        if ((long) (lastRow - firstRow + 1) * columnCount > cells.size()) {
+            // Fewer cells hold trips than the box covers, look at those instead
+            for (Map.Entry<Long, LinkedHashMap<String, Trip>> entry : cells.entrySet()) {
+                long cell = entry.getKey();
+                int row = (int) (cell / columns);
+                int column = (int) (cell % columns);
+                if (row >= firstRow && row <= lastRow && Math.floorMod(column - firstColumn, columns) < columnCount) {
+                    measure(center, radiusKm, bounds, entry.getValue(), hits);
+                }
+            }
+            return hits;
+        }
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int i = 0; i < columnCount; i++) {
+                LinkedHashMap<String, Trip> trips = cells.get(cell(row, (firstColumn + i) % columns));
+                if (trips != null) {
+                    measure(center, radiusKm, bounds, trips, hits);
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static void measure(UserLocation center, double radiusKm, GeoBounds bounds, Map<String, Trip> trips,
+                                List<Hit> hits) {
+        for (Trip trip : trips.values()) {
+            if (!bounds.contains(trip.getStartUserLocation())) {
+                continue;
+            }
+            double distanceKm = center.haversineDistanceTo(trip.getStartUserLocation());
+            if (distanceKm <= radiusKm) {
+                hits.add(new Hit(trip, distanceKm));
+            }
+        }
+    }
+
+    private int row(double latitude) {
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor((latitude + 90) / cellDegrees)));
+    }
+
+    /**
+     * The column of a longitude, wrapping around the antimeridian
+     */
+    private int column(double longitude) {
+        return Math.floorMod((int) Math.floor((longitude + 180) / cellDegrees), columns);
+    }
+
+    private long cell(int row, int column) {
+        return (long) row * columns + column;
+    }
+
+    /**
+     * A trip found by a query and its distance from the center
+     */
+    private static class Hit {
+        private final Trip trip;
+        private final double distanceKm;
+
+        private Hit(Trip trip, double distanceKm) {
+            this.trip = trip;
+            this.distanceKm = distanceKm;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.ownmyway.model;
+
+/**
+ * The part of a trip that never changes once it is requested: where it starts and ends, the fare
+ * and who requested it. It is stored apart from the trip's status, so listeners on a trip only
+ * receive the few fields that change as the trip moves through its statuses.
+ */
+public class TripRoute {
+    private UserLocation startUserLocation;
+    private UserLocation endUserLocation;
+    private double fareOffering;
+    private String riderUserName;
+    private long createdAt;
+
+    /**
+     * Empty constructor used for Firebase
+     */
+    public TripRoute() {}
+
+    /**
+     * Takes the route of a trip
+     * @param trip the trip being requested
+     */
+    public TripRoute(Trip trip) {
+        this.startUserLocation = trip.getStartUserLocation();
+        this.endUserLocation = trip.getEndUserLocation();
+        this.fareOffering = trip.getFareOffering();
+        this.riderUserName = trip.getRiderUserName();
+        this.createdAt = trip.getCreatedAt();
+    }
+
+    /**
+     * Sets the route on a trip read without it
+     * @param trip the trip to complete
+     */
+    public void applyTo(Trip trip) {
+        trip.setStartUserLocation(startUserLocation);
+        trip.setEndUserLocation(endUserLocation);
+        trip.setFareOffering(fareOffering);
+        trip.setRiderUserName(riderUserName);
+    }
+
+    public UserLocation getStartUserLocation() {
+        return startUserLocation;
+    }
+
+    public void setStartUserLocation(UserLocation startUserLocation) {
+        this.startUserLocation = startUserLocation;
+    }
+
+    public UserLocation getEndUserLocation() {
+        return endUserLocation;
+    }
+
+    public void setEndUserLocation(UserLocation endUserLocation) {
+        this.endUserLocation = endUserLocation;
+    }
+
+    public double getFareOffering() {
+        return fareOffering;
+    }
+
+    public void setFareOffering(double fareOffering) {
+        this.fareOffering = fareOffering;
+    }
+
+    public String getRiderUserName() {
+        return riderUserName;
+    }
+
+    public void setRiderUserName(String riderUserName) {
+        this.riderUserName = riderUserName;
+    }
+
+    /**
+     * Time the trip was requested. A rider's next trip reuses the same document id, so this tells
+     * the route of one trip apart from the route of the rider's earlier trips.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -7,12 +7,22 @@ import com.google.android.gms.maps.model.LatLng;
 /**
  * Used to represent a location that can be parsed by Google's map API. Currently just a
  * latitude and longitude with some simple methods for calculating distance between locations.
+ * The radians and cosine of the location are kept alongside the degrees, so distance checks
+ * against many locations do not convert them again on every call.
  */
 public class UserLocation {
+    /** Earth's radius as implied by distanceTo, so every distance method agrees with it */
+    public static final double EARTH_RADIUS_KM = 60 * 1.1515 * 1.609344 * 180 / Math.PI;
+
     private double latitude;
     private double longitude;
     private String address;
 
+    // Not stored in Firebase, there are no getters for them
+    private double latitudeRadians;
+    private double longitudeRadians;
+    private double cosLatitude = 1;
+
     /**
      * Empty constructor used for Firebase
      */
@@ -23,8 +33,8 @@ public class UserLocation {
      * @param latitude,longitude the location of a user
      */
     public UserLocation(double latitude, double longitude) {
-        this.latitude = latitude;
-        this.longitude = longitude;
+        setLatitude(latitude);
+        setLongitude(longitude);
     }
 
     public String getAddress() {
@@ -41,6 +51,8 @@ public class UserLocation {
 
     public void setLatitude(double latitude) {
         this.latitude = latitude;
+        this.latitudeRadians = Math.toRadians(latitude);
+        this.cosLatitude = Math.cos(latitudeRadians);
     }
 
     public double getLongitude() {
@@ -49,6 +61,7 @@ public class UserLocation {
 
     public void setLongitude(double longitude) {
         this.longitude = longitude;
+        this.longitudeRadians = Math.toRadians(longitude);
     }
 
     /**
@@ -84,6 +97,56 @@ public class UserLocation {
         return (dist);
     }
 
+    /**
+     * Great circle distance by the haversine formula. Unlike distanceTo it stays accurate for
+     * locations a few meters apart, and is 0 rather than NaN for the same location.
+     * @param other the other location
+     * @return the distance in kilometers
+     */
+    public double haversineDistanceTo(UserLocation other) {
+        double sinHalfLatitude = Math.sin((other.latitudeRadians - latitudeRadians) / 2);
+        double sinHalfLongitude = Math.sin((other.longitudeRadians - longitudeRadians) / 2);
+        double h = sinHalfLatitude * sinHalfLatitude +
+                cosLatitude * other.cosLatitude * sinHalfLongitude * sinHalfLongitude;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * Distance on a flat projection of the earth around the two locations. It needs no trigonometry
+     * beyond the cached cosines and is within 0.1% of the great circle distance up to about 100km
+     * away from the poles, so it suits short range checks such as geofences.
+     * @param other the other location
+     * @return the distance in kilometers
+     */
+    public double equirectangularDistanceTo(UserLocation other) {
+        double longitudeDelta = Math.abs(other.longitudeRadians - longitudeRadians);
+        if (longitudeDelta > Math.PI) {
+            // The short way round crosses the antimeridian
+            longitudeDelta = 2 * Math.PI - longitudeDelta;
+        }
+        double x = longitudeDelta * (cosLatitude + other.cosLatitude) / 2;
+        double y = other.latitudeRadians - latitudeRadians;
+        return EARTH_RADIUS_KM * Math.sqrt(x * x + y * y);
+    }
+
+    /**
+     * The latitude/longitude box around this location that holds every location within a radius.
+     * Testing a location against the box is far cheaper than measuring the distance to it, so it is
+     * used to reject far away locations first.
+     * @param radiusKm the radius in kilometers
+     */
+    public GeoBounds boundsWithin(double radiusKm) {
+        return new GeoBounds(latitudeRadians, longitudeRadians, cosLatitude, radiusKm / EARTH_RADIUS_KM);
+    }
+
+    double latitudeRadians() {
+        return latitudeRadians;
+    }
+
+    double longitudeRadians() {
+        return longitudeRadians;
+    }
+
     /**
      * converts degrees to radians
      * */
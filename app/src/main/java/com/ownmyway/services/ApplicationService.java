@@ -1,24 +1,24 @@
 package com.ownmyway.services;
 
-import android.util.Log;
-
 import com.ownmyway.App;
 import com.ownmyway.controllers.EventCompletionListener;
+import com.ownmyway.db.TripFeedListener;
 import com.ownmyway.model.Account;
 import com.ownmyway.model.Driver;
 import com.ownmyway.model.Rider;
 import com.ownmyway.model.Trip;
 import com.ownmyway.model.User;
 import com.ownmyway.model.UserLocation;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.ListenerRegistration;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
 
-import static com.ownmyway.model.Trip.STATUS.DRIVER_ACCEPT;
-import static com.ownmyway.model.Trip.STATUS.DRIVER_PICKING_UP;
 import static com.ownmyway.model.User.TYPE.RIDER;
 
 
@@ -29,456 +29,360 @@ import static com.ownmyway.model.User.TYPE.RIDER;
  */
 public class ApplicationService {
 
+    private static LocationPublisher locationPublisher;
+    private static TripHistorySweeper tripHistorySweeper;
+
     /**
-     * Calls the DBManger class to create a user in Firebase. On success the listener gets
-     * the trip object. On failure the listener returns the exception
+     * Calls the DBManger class to create a user in Firebase. On success the task returns
+     * the rider object. On failure the task fails with the exception
      *
      * @param username,password,firstName,lastName,email,phoneNumber,type The users information
-     * @param controllerListener                                          the listener that gets results from the Firebase call.
+     * @return the task that completes once the Firebase calls end
      */
-    public static void createNewUser(
+    public static Task<Rider> createNewUser(
             String username,
             String password,
             String firstName,
             String lastName,
             String email,
-            String phoneNumber,
-            EventCompletionListener controllerListener
+            String phoneNumber
     ) {
         Account newUserAccount = new Account(firstName, lastName, email, phoneNumber);
-        App.getAuthDBManager().createFirebaseUser(email, password, (resultData, err) -> {
-            if (err != null) {
-                controllerListener.onCompletion(null, new Error(err.getMessage()));
-                return;
-            }
-            String docID = (String) resultData.get("doc-id");
-            // Right now, we just return a rider object, this should change if we provide the
-            // option to login as both
-            App.getDbManager().createRider(docID, new Rider(username, newUserAccount), controllerListener);
-            App.getDbManager().createDriver(docID, new Driver(username, newUserAccount), ((resultData1, err1) -> {
-            }));
-
-        });
-
+        // Right now, we just return a rider object, this should change if we provide the
+        // option to login as both. Both profiles are committed together.
+        return App.getAuthDBManager().createFirebaseUser(email, password)
+                .onSuccessTask(docID -> App.getDbManager().createUserProfiles(
+                        docID,
+                        new Rider(username, newUserAccount),
+                        new Driver(username, newUserAccount)));
     }
 
 
-    public static void loginUser(String email,
-                                 String password,
-                                 User.TYPE type,
-                                 EventCompletionListener controllerListener) {
-        App.getAuthDBManager().signIn(email, password, (resultData, err) -> {
-            if (err != null) {
-                controllerListener.onCompletion(null, new Error(err.getMessage()));
-                return;
-            }
-            String docID = (String) resultData.get("doc-id");
+    /**
+     * Calls the AuthDBManager class to sign the user in, then loads the profile of the given type.
+     * Once logged in, finished trips are archived in the background.
+     * On success the task returns the user object. On failure the task fails with the exception
+     *
+     * @param email,password,type The users information
+     * @return the task that completes once the Firebase calls end
+     */
+    public static Task<User> loginUser(String email, String password, User.TYPE type) {
+        return App.getAuthDBManager().signIn(email, password).onSuccessTask(docID -> {
             if (type == User.TYPE.DRIVER) {
-                App.getDbManager().getDriver(docID, controllerListener);
+                return App.getDbManager().getDriver(docID).onSuccessTask(driver -> Tasks.<User>forResult(driver));
             } else {
-                App.getDbManager().getRider(docID, controllerListener);
+                return App.getDbManager().getRider(docID).onSuccessTask(rider -> Tasks.<User>forResult(rider));
+            }
+        }).onSuccessTask(user -> {
+            if (tripHistorySweeper == null) {
+                tripHistorySweeper = new TripHistorySweeper();
             }
+            tripHistorySweeper.start();
+            return Tasks.forResult(user);
         });
     }
 
 
-    public static void createNewTrip(Trip tripRequest, EventCompletionListener controllerListener) {
-        App
-                .getDbManager()
-                .createTrip(tripRequest,
-                        (resultData, err) -> {
-                            if (err != null) {
-                                controllerListener.onCompletion(null, new Error(err.getMessage()));
-                            } else {
-                                controllerListener.onCompletion(resultData, null);
-                            }
-                        }, true);
+    /**
+     * Calls the DBManager class to create a trip and listen to its updates. On success the task
+     * returns the trip object. On failure the task fails with the exception
+     *
+     * @param tripRequest the trip to create
+     * @return the task that completes once the Firebase call ends
+     */
+    public static Task<Trip> createNewTrip(Trip tripRequest) {
+        return App.getDbManager().createTrip(tripRequest, true);
     }
 
     /**
-     * Calls the DBManager class to get the trips filtered by geolocation. On success the listener returns
-     * a list of filteredTripsData. On failure the listener returns the exception.
+     * Calls the DBManager class to find the pending trips a driver is shown. If the driver moved the
+     * map away from their location, the trips inside the visible map area are found, otherwise the
+     * trips near the driver, searching farther until enough are found. Only the best TRIP_COUNT trips
+     * by fare, pickup distance and waiting time are kept, best first. On success the listener first
+     * gets the trips found and is then called with the trips that entered or left the selection and
+     * their new order. On failure the listener returns the exception.
      *
-     * @param driverLocation     the center location for the geosearch
+     * @param driverLocation     the driver's location
+     * @param searchBounds       the visible map area, or null if unknown
      * @param controllerListener the listener that gets results from the Firebase call.
+     * @return the discovery used to load more trips, to remove once the caller no longer needs updates
      */
-    public static void getFilteredTrips(UserLocation driverLocation, EventCompletionListener controllerListener) {
-        double RADIUS = 6.0; // TODO: Make this dynamic based on map bounds
-        App.getDbManager().getTrips((resultData, err) -> {
-            if (err != null) {
-                controllerListener.onCompletion(null, err);
-            } else {
-                List<Trip> filterTrips = new LinkedList<>();
-                List<Trip> tripData = (List<Trip>) resultData.get("all-trips");
-                String currentUid = App.getAuthDBManager().getCurrentUserID();
-                if (tripData != null && tripData.size() > 0) {
-                    for (Trip t : tripData) {
-                        double distance = driverLocation.distanceTo(t.getStartUserLocation());
-                        if (
-                                distance <= RADIUS &&
-                                        t.getStatus() == Trip.STATUS.PENDING &&
-                                        !t.getRiderID().equals(currentUid)
-                        ) {
-                            filterTrips.add(t);
-                        }
-                    }
-
-                    HashMap<String, List> filteredTripsData = new HashMap<>();
-                    filteredTripsData.put("filtered-trips", filterTrips);
-                    controllerListener.onCompletion(filteredTripsData, null);
-
-                } else {
-                    controllerListener.onCompletion(null, new Error("Could not find trips"));
-                }
-            }
-        });
+    public static TripDiscovery getFilteredTrips(UserLocation driverLocation, LatLngBounds searchBounds,
+                                                 TripFeedListener controllerListener) {
+        int TRIP_COUNT = 20;
+        String currentUid = App.getAuthDBManager().getCurrentUserID();
+        if (searchBounds != null && !searchBounds.contains(driverLocation.generateLatLng())) {
+            return TripDiscovery.within(searchBounds, driverLocation, TRIP_COUNT, currentUid, TripRanker.DEFAULT,
+                    controllerListener);
+        }
+        return TripDiscovery.nearest(driverLocation, TRIP_COUNT, currentUid, TripRanker.DEFAULT, controllerListener);
     }
 
 
     /**
-     * Calls the DBManager class to get the trips filtered by geolocation. On success the listener returns
-     * a list of filteredTripsData. On failure the listener returns the exception.
+     * Calls the DBManager class to get the trips in the driver's queue. On success the listener returns
+     * the queued trips in queue order. On failure the listener returns the exception.
      *
      * @param controllerListener the listener that gets results from the Firebase call.
+     * @return the registration to remove once the caller no longer needs updates
      */
-    public static void getFilteredPendingTripsForDriver(EventCompletionListener controllerListener) {
-        App.getDbManager().getTrips((resultData, err) -> {
+    public static ListenerRegistration getFilteredPendingTripsForDriver(EventCompletionListener<List<Trip>> controllerListener) {
+        String currentUid = App.getAuthDBManager().getCurrentUserID();
+        HashMap<String, Trip> queueById = new HashMap<>();
+        return App.getDbManager().getDriverQueue(currentUid, (delta, err) -> {
             if (err != null) {
                 controllerListener.onCompletion(null, err);
             } else {
-                List<Trip> filterTrips = new LinkedList<>();
-                List<Trip> tripData = (List<Trip>) resultData.get("all-trips");
-                String currentUid = App.getAuthDBManager().getCurrentUserID();
-                if (tripData != null && tripData.size() > 0) {
-                    // First, get only DRIVER_ACCEPTs
-                    for (Trip t : tripData) {
-                        if (
-                                (t.getStatus() == DRIVER_ACCEPT || t.getStatus() == DRIVER_PICKING_UP) &&
-                                        t.getDriverID().equals(currentUid) &&
-                                        !t.getRiderID().equals(currentUid)
-                        ) {
-                            filterTrips.add(t);
-                        }
+                // Firebase only returns this driver's DRIVER_ACCEPT and DRIVER_PICKING_UP trips,
+                // so just apply the trips that changed
+                for (Trip t : delta.getUpserted()) {
+                    if (!t.getRiderID().equals(currentUid)) {
+                        queueById.put(t.getRiderID(), t);
                     }
+                }
+                for (String tripID : delta.getRemovedIds()) {
+                    queueById.remove(tripID);
+                }
 
-                    // Second, sort by driver queue
-                    User sessionUser = App.getModel().getSessionUser();
-                    Driver driverSessionUser = (Driver) sessionUser;
-                    filterTrips.sort(Comparator.comparing(
-                            v -> driverSessionUser.getAcceptedTripIds().indexOf(v.getRiderID())
-                    ));
-
-                    HashMap<String, List> filteredTripsData = new HashMap<>();
-                    filteredTripsData.put("filtered-trips", filterTrips);
-                    controllerListener.onCompletion(filteredTripsData, null);
+                // Keep the queue order stored on each trip
+                List<Trip> filterTrips = new ArrayList<>(queueById.values());
+                filterTrips.sort(Comparator.comparingLong(Trip::getQueuePosition));
 
-                } else {
-                    controllerListener.onCompletion(null, new Error("Could not find trips"));
-                }
+                controllerListener.onCompletion(filterTrips, null);
             }
         });
     }
 
 
     /**
-     * Calls the DBManager class to get the Users current trip session. On success the listener returns
-     * the trip. On failure the listener returns the exception.
+     * Calls the DBManager class to get the Users current trip session and listen to its updates.
+     * On success the task returns the trip, or null if the user has no current trip.
      *
-     * @param controllerListener the listener that gets results from the Firebase call.
+     * @return the task that completes once the Firebase call ends
      */
-    public static void getSessionTripForUser(EventCompletionListener controllerListener) {
+    public static Task<Trip> getSessionTripForUser() {
         String userUID = App.getAuthDBManager().getCurrentUserID();
         User sessionUser = App.getModel().getSessionUser();
-        if (sessionUser != null) {
-            if (sessionUser.getType() == RIDER) {
-                // Get the trip by directly query the document
-                App.getDbManager().getTrip(userUID, ((resultData, err) -> {
-                    if (resultData.containsKey("trip") && err == null) {
-                        controllerListener.onCompletion(resultData, null);
-                    } else if (!resultData.containsKey("trip") && err == null) {
-                        controllerListener.onCompletion(null, null);
-                    } else {
-                        controllerListener.onCompletion(null, null);
-                    }
-                }), true);
-            } else {
-                // Query trips db based on driverId
-                Driver sessionDriver = (Driver) sessionUser;
-                List<String> acceptedTripIds = sessionDriver.getAcceptedTripIds();
-                if (acceptedTripIds == null || acceptedTripIds.size() == 0) {
-                    // No current Trip
-                    controllerListener.onCompletion(null, null);
-                } else {
-                    // get the first trip
-                    App.getDbManager().getTrip(acceptedTripIds.get(0), (resultData, err) -> {
-                        if (resultData != null) {
-                            Trip sessionTrip = (Trip) resultData.get("trip");
-                            HashMap<String, Trip> res = new HashMap<>();
-                            res.put("trip", sessionTrip);
-                            controllerListener.onCompletion(res, null);
-                        }
-                    }, true);
-                }
+        if (sessionUser == null) {
+            return Tasks.forException(new Exception("No user is logged in"));
+        }
+        String tripID;
+        if (sessionUser.getType() == RIDER) {
+            // Get the trip by directly query the document
+            tripID = userUID;
+        } else {
+            // The driver's session trip is the first trip in their queue
+            List<String> acceptedTripIds = ((Driver) sessionUser).getAcceptedTripIds();
+            if (acceptedTripIds == null || acceptedTripIds.size() == 0) {
+                // No current Trip
+                return Tasks.forResult(null);
             }
+            tripID = acceptedTripIds.get(0);
         }
+        // A trip that cannot be read is treated as no current trip
+        return App.getDbManager().getTrip(tripID, true)
+                .continueWith(task -> task.isSuccessful() ? task.getResult() : null);
     }
 
     /**
-     * Calls the DBManager class to update the trip selected. On success the listener returns
-     * the trip updates. On failure the listener returns the exception.
+     * Calls the DBManager class to move the session trip to DRIVER_PICKING_UP once the rider accepts
+     * the driver's offer. On failure the task fails with the exception.
      *
-     * @param uid                The document id of the trip
-     * @param selectedTrip       the trip object selected
-     * @param controllerListener the listener that gets results from the Firebase call.
+     * @return the task that completes once the Firebase call ends
      */
-    public static void notifyDriverForPickup(String uid, Trip selectedTrip, EventCompletionListener controllerListener) {
-        // First: get the Driver ID who wants to pick the rider up!
-        ApplicationService.getSessionTripForUser((resultData, err) -> {
-            if (err != null) {
-                Log.e("Exception: %s", Objects.requireNonNull(err.getMessage()));
-            } else {
-                if (resultData != null && resultData.containsKey("trip")) {
-                    Trip sessionTrip = (Trip) resultData.get("trip");
-                    String tripDriverID = Objects.requireNonNull(sessionTrip).getDriverID();
-                    selectedTrip.setDriverID(tripDriverID);
-                    selectedTrip.setStatus(Trip.STATUS.DRIVER_PICKING_UP);
-                    // Second: call updateTrip to change the trip status and thus notify the driver!
-                    App.getDbManager().updateTrip(uid, selectedTrip, controllerListener, true);
-                }
-            }
-        });
+    public static Task<Void> notifyDriverForPickup() {
+        return transitionSessionTrip(Trip.STATUS.DRIVER_ACCEPT, Trip.STATUS.DRIVER_PICKING_UP);
     }
 
     /**
-     * Calls the DBManager class to update the trip selected. On success the listener returns
-     * the trip updates. On failure the listener returns the exception.
+     * Calls the DBManager class to move the session trip to DRIVER_ARRIVED once the driver reaches
+     * the rider. On failure the task fails with the exception.
      *
-     * @param uid                The document id of the trip
-     * @param selectedTrip       the trip object selected
-     * @param controllerListener the listener that gets results from the Firebase call.
+     * @return the task that completes once the Firebase call ends
      */
-    public static void notifyRiderForPickup(String uid, Trip selectedTrip, EventCompletionListener controllerListener) {
-        // First: get the Driver ID who wants to pick the rider up!
-        ApplicationService.getSessionTripForUser((resultData, err) -> {
-            if (err != null) {
-                Log.e("Exception: %s", Objects.requireNonNull(err.getMessage()));
-            } else {
-                if (resultData != null && resultData.containsKey("trip")) {
-                    Trip sessionTrip = (Trip) resultData.get("trip");
-                    String tripDriverID = Objects.requireNonNull(sessionTrip).getDriverID();
-                    selectedTrip.setDriverID(tripDriverID);
-                    selectedTrip.setStatus(Trip.STATUS.DRIVER_ARRIVED);
-                    // Second: call updateTrip to change the trip status and thus notify the driver!
-                    App.getDbManager().updateTrip(uid, selectedTrip, controllerListener, true);
-                }
-            }
-        });
+    public static Task<Void> notifyRiderForPickup() {
+        return transitionSessionTrip(Trip.STATUS.DRIVER_PICKING_UP, Trip.STATUS.DRIVER_ARRIVED);
     }
 
     /**
-     * Calls the DBManager class to update the trip selected. On success the listener returns
-     * the trip updates. On failure the listener returns the exception.
+     * Begins trip, moving the session trip to EN_ROUTE. On failure the task fails with the exception.
      *
-     * @param uid                The document id of the trip
-     * @param selectedTrip       the trip object selected
-     * @param controllerListener the listener that gets results from the Firebase call.
+     * @return the task that completes once the Firebase call ends
      */
-    public static void selectTrip(String uid, Trip selectedTrip, EventCompletionListener controllerListener) {
-        App.getDbManager().updateTrip(uid, selectedTrip, ((resultData, err) -> {
-            if (err == null) {
-                // now that we have updated the trip, add to driver selected trip ids
-                Driver currentDriver = (Driver) App.getModel().getSessionUser();
-                currentDriver.getAcceptedTripIds().add(uid);
-                App.getDbManager().updateDriver(App.getAuthDBManager().getCurrentUserID(), currentDriver, controllerListener);
-            }
-        }), true);
+    public static Task<Void> beginTrip() {
+        return transitionSessionTrip(Trip.STATUS.DRIVER_ARRIVED, Trip.STATUS.EN_ROUTE);
     }
 
     /**
-     * Begins trip
+     * Calls the DBManager class to move the session trip to COMPLETED. On failure the task fails
+     * with the exception.
      *
-     * @param uid                The document id of the trip
-     * @param selectedTrip       the trip object selected
-     * @param controllerListener the listener that gets results from the Firebase call.
+     * @return the task that completes once the Firebase call ends
      */
-    public static void beginTrip(String uid, Trip selectedTrip, EventCompletionListener controllerListener) {
-        // First: get the Driver ID who wants to pick the rider up!
-        ApplicationService.getSessionTripForUser((resultData, err) -> {
-            if (err != null) {
-                Log.e("Exception: %s", Objects.requireNonNull(err.getMessage()));
-            } else {
-                if (resultData != null && resultData.containsKey("trip")) {
-                    Trip sessionTrip = (Trip) resultData.get("trip");
-                    String tripDriverID = Objects.requireNonNull(sessionTrip).getDriverID();
-                    selectedTrip.setDriverID(tripDriverID);
-                    // Second: call updateTrip to change the trip status and thus notify the driver!
-                    App.getDbManager().updateTrip(uid, selectedTrip, controllerListener, true);
-                }
-            }
-        });
+    public static Task<Void> completeTrip() {
+        return transitionSessionTrip(Trip.STATUS.EN_ROUTE, Trip.STATUS.COMPLETED);
     }
 
     /**
-     * Calls the DBManager class to update the trip selected. On success the listener returns
-     * the trip updates. On failure the listener returns the exception.
+     * Moves the session trip held by the model to its next status with a single guarded write.
+     * The model's session trip is kept fresh by its snapshot listener, so there is no need to
+     * re-read the trip or attach another listener first. Once the write succeeds the model's session
+     * trip takes the new status and the views are notified.
      *
-     * @param uid                The document id of the trip
-     * @param selectedTrip       the trip object selected
-     * @param controllerListener the listener that gets results from the Firebase call.
+     * @param expectedStatus     the status the trip must currently be in
+     * @param newStatus          the status to move the trip to
+     * @return the task that completes once the Firebase call ends
      */
-    public static void completeTrip(String uid, Trip selectedTrip, EventCompletionListener controllerListener) {
-        // First: get the Driver ID who wants to pick the rider up!
-        ApplicationService.getSessionTripForUser((resultData, err) -> {
-            if (err != null) {
-                Log.e("Exception: %s", Objects.requireNonNull(err.getMessage()));
-            } else {
-                if (resultData != null && resultData.containsKey("trip")) {
-                    Trip sessionTrip = (Trip) resultData.get("trip");
-                    String tripDriverID = Objects.requireNonNull(sessionTrip).getDriverID();
-                    selectedTrip.setDriverID(tripDriverID);
-                    selectedTrip.setStatus(Trip.STATUS.COMPLETED);
-                    // Second: call updateTrip to change the trip status and thus notify the driver!
-                    App.getDbManager().updateTrip(uid, selectedTrip, controllerListener, true);
-                }
-            }
-        });
+    private static Task<Void> transitionSessionTrip(Trip.STATUS expectedStatus, Trip.STATUS newStatus) {
+        Trip sessionTrip = App.getModel().getSessionTrip();
+        if (sessionTrip == null) {
+            return Tasks.forException(new Exception("No active trip"));
+        }
+        return App.getDbManager()
+                .updateTripStatus(sessionTrip.getRiderID(), expectedStatus, newStatus, sessionTrip.getDriverID(), false)
+                .addOnSuccessListener(aVoid -> App.getModel().setSessionTripStatus(sessionTrip, newStatus));
     }
 
     /**
-     * Calls the DBManager class to deletes current trip for rider. On success the listener returns.
+     * Calls the DBManager class to accept the trip selected for the current driver. The trip is only
+     * assigned if no other driver has taken it first. On success the task returns the accepted
+     * trip. If the trip was already taken the task fails with a TripConflictException.
      *
-     * @param trip               The document id of the trip to delete
-     * @param controllerListener the listener that gets results from the Firebase call.
+     * @param uid                The document id of the trip
+     * @return the task that completes once the Firebase call ends
      */
-    public static void deleteCurrentTrip(Trip trip, EventCompletionListener controllerListener) {
-        // First, delete the trip from the DB
-        App.getDbManager().deleteTrip(trip.getRiderID(), ((resultData, err) -> {
-            if (err == null) {
-                // Next, find the driver (if one) that is assigned to this trip and remove that from
-                // the drivers trip queue
-                String driverID = trip.getDriverID();
-                if (driverID != null) {
-                    App.getDbManager().getDriver(driverID, ((resultData1, err1) -> {
-                        if (resultData1 != null) {
-                            Driver assignedDriver = (Driver) resultData1.get("user");
-                            // remove the trip id from the drivers queue
-                            Objects.requireNonNull(assignedDriver).getAcceptedTripIds().remove(trip.getRiderID());
-                            // finally, update the driver and complete
-                            App.getDbManager().updateDriver(
-                                    assignedDriver.getDocID(),
-                                    assignedDriver,
-                                    controllerListener
-                            );
-                        }
-                    }));
-                } else {  // Edge case: rider cancels a trip before a driver accepts
-                    controllerListener.onCompletion(null, null);
-                }
-            }
-        }));
+    public static Task<Trip> selectTrip(String uid) {
+        String driverID = App.getAuthDBManager().getCurrentUserID();
+        long queuePosition = System.currentTimeMillis();
+        boolean listen = App.getModel().getSessionTrip() == null;  // only follow it if it becomes the session trip
+        return App.getDbManager().acceptTrip(uid, driverID, queuePosition, listen)
+                .onSuccessTask(acceptedTrip -> {
+                    // The transaction already added the trip to the driver's queue in Firebase
+                    Driver currentDriver = (Driver) App.getModel().getSessionUser();
+                    currentDriver.getAcceptedTripIds().add(uid);
+                    return Tasks.forResult(acceptedTrip);
+                });
     }
 
     /**
-     * Calls the DBManager class to fetch the correct last lodged in user from the correct collection. On success the listener returns the update.
+     * Calls the DBManager class to delete the current trip for rider and remove it from the queue
+     * of the driver assigned to it, if any. Both writes are sent together.
      *
-     * @param updateSessionUser The current logged in user
-     * @param listener          the listener that gets results from the Firebase call.
+     * @param trip               The trip to delete
+     * @return the task that completes once both Firebase calls end
      */
-    public static void manageLoggedStateAcrossTwoUserCollections(boolean loggingIn, User updateSessionUser, User.TYPE userType, EventCompletionListener listener) {
-        String uID = App.getAuthDBManager().getCurrentUserID();
-        if (updateSessionUser != null) {
-            switch (userType) {
-                case RIDER:
-                    Rider currRider = (Rider) updateSessionUser;
-                    currRider.setRiderLoggedOn(loggingIn);
-                    App.getDbManager().updateRider(uID, currRider, (resultData, err) -> {
-                        if (err == null) {
-                            App.getDbManager().getDriver(uID, (driver, err1) -> {
-                                if (err1 == null) {
-                                    Driver correspondingDriver = (Driver) driver.get("user");
-                                    if (correspondingDriver == null) { // Edge case: no corresponding driver account
-                                        if (!loggingIn) logoutUser();
-                                        listener.onCompletion(null, null);
-                                    } else {
-                                        correspondingDriver.setLoggedOn(false);
-                                        App.getDbManager().updateDriver(uID, correspondingDriver, (driver2, err2) -> {
-                                            if (err2 == null) {
-                                                if (!loggingIn) logoutUser();
-                                                listener.onCompletion(null, null);
-                                            }
-                                        });
-                                    }
-                                }
-                            });
-                        }
-                    });
-                    break;
-                case DRIVER:
-                    Driver currDriver = (Driver) updateSessionUser;
-                    currDriver.setLoggedOn(loggingIn);
-                    App.getDbManager().updateDriver(uID, currDriver, (resultData, err) -> {
-                        if (err == null) {
-                            App.getDbManager().getRider(uID, (rider, err1) -> {
-                                if (err1 == null) {
-                                    Rider correspondingRider = (Rider) rider.get("user");
-                                    if (correspondingRider == null) { // Edge case: no corresponding rider account
-                                        if (!loggingIn) logoutUser();
-                                        listener.onCompletion(null, null);
-                                    } else {
-                                        correspondingRider.setRiderLoggedOn(false);
-                                        App.getDbManager().updateRider(uID, correspondingRider, (rider2, err2) -> {
-                                            if (err2 == null) {
-                                                if (!loggingIn) logoutUser();
-                                                listener.onCompletion(null, null);
-                                            }
-                                        });
-                                    }
-                                }
-                            });
-                        }
-                    });
-                    break;
-            }
+    public static Task<Void> deleteCurrentTrip(Trip trip) {
+        Task<Void> deleteTrip = App.getDbManager().deleteTrip(trip.getRiderID());
+        String driverID = trip.getDriverID();
+        if (driverID == null) {  // Edge case: rider cancels a trip before a driver accepts
+            return deleteTrip;
         }
+        // The driver's queue is updated in place, so it does not need to wait for the delete
+        Task<Void> dequeue = App.getDbManager().removeFromDriverQueue(driverID, trip.getRiderID());
+        return Tasks.whenAll(deleteTrip, dequeue);
     }
 
+    /**
+     * Calls the DBManager class to move the current trip, once paid for, to the trip history. It is
+     * removed from the trips collection and from its driver's queue in the same commit.
+     *
+     * @param trip               The trip to archive
+     * @return the task that completes once the Firebase call ends
+     */
+    public static Task<Void> archiveCurrentTrip(Trip trip) {
+        return App.getDbManager().archiveTrip(trip.getRiderID());
+    }
 
-    public static void updateUser(User updateSessionUser, User.TYPE userType, EventCompletionListener listener) {
+    /**
+     * Calls the DBManager class to flip the logged on state of both user profiles in one commit. The
+     * profile of userType gets the new state and the other profile is logged off. Logging out also
+     * signs the user out once the commit succeeds.
+     *
+     * @param updateSessionUser The current logged in user
+     * @return the task that completes once the Firebase call ends
+     */
+    public static Task<Void> manageLoggedStateAcrossTwoUserCollections(boolean loggingIn, User updateSessionUser, User.TYPE userType) {
         String uID = App.getAuthDBManager().getCurrentUserID();
+        if (updateSessionUser == null) {
+            return Tasks.forException(new Exception("No user is logged in"));
+        }
         switch (userType) {
             case RIDER:
-                App.getDbManager().getRider(uID, (rider, err1) -> {
-                    if (err1 == null) {
-                        Rider correspondingRider = (Rider) rider.get("user");
-                        Objects.requireNonNull(correspondingRider).setAccount(updateSessionUser.getAccount());
-                        correspondingRider.setUsername(updateSessionUser.getUsername());
-                        App.getDbManager().updateRider(uID, correspondingRider, (rider2, err2) -> {
-                        });
-                    } else {
-                        listener.onCompletion(null, new Error("rider does not exist"));
-                    }
-                });
+                ((Rider) updateSessionUser).setRiderLoggedOn(loggingIn);
                 break;
             case DRIVER:
-                App.getDbManager().getDriver(uID, (driver, err1) -> {
-                    if (err1 == null) {
-                        Driver correspondingDriver = (Driver) driver.get("user");
-                        Objects.requireNonNull(correspondingDriver).setAccount(updateSessionUser.getAccount());
-                        correspondingDriver.setUsername(updateSessionUser.getUsername());
-                        App.getDbManager().updateDriver(uID, correspondingDriver, (driver2, err2) -> {
-                        });
-                    } else {
-                        listener.onCompletion(null, new Error("driver does not exist"));
-                    }
-                });
+                ((Driver) updateSessionUser).setLoggedOn(loggingIn);
                 break;
         }
+        return App.getDbManager().setLoggedOnState(uID, userType, loggingIn).onSuccessTask(aVoid -> {
+            if (!loggingIn) logoutUser();
+            return Tasks.forResult(null);
+        });
+    }
+
+
+    /**
+     * Hands a GPS fix of the session user to the location publisher, which writes the user's
+     * location to Firebase at a bounded rate. Does nothing if no user is logged in.
+     *
+     * @param location the user's new location
+     */
+    public static void publishUserLocation(UserLocation location) {
+        User sessionUser = App.getModel().getSessionUser();
+        String uID = App.getAuthDBManager().getCurrentUserID();
+        if (sessionUser == null || uID == null) {
+            return;
+        }
+        if (locationPublisher == null) {
+            locationPublisher = new LocationPublisher();
+        }
+        locationPublisher.submit(uID, sessionUser.getType(), location);
+    }
+
+    /**
+     * Calls the DBManager class to copy the edited account details of the session user onto their
+     * stored profile of the given type. On failure the task fails with the exception.
+     *
+     * @param updateSessionUser the edited user
+     * @param userType          the profile to update
+     * @return the task that completes once the Firebase calls end
+     */
+    public static Task<Void> updateUser(User updateSessionUser, User.TYPE userType) {
+        String uID = App.getAuthDBManager().getCurrentUserID();
+        if (userType == RIDER) {
+            return App.getDbManager().getRider(uID).onSuccessTask(correspondingRider -> {
+                if (correspondingRider == null) {
+                    return Tasks.forException(new Exception("rider does not exist"));
+                }
+                correspondingRider.setAccount(updateSessionUser.getAccount());
+                correspondingRider.setUsername(updateSessionUser.getUsername());
+                return App.getDbManager().updateRider(uID, correspondingRider);
+            });
+        } else {
+            return App.getDbManager().getDriver(uID).onSuccessTask(correspondingDriver -> {
+                if (correspondingDriver == null) {
+                    return Tasks.forException(new Exception("driver does not exist"));
+                }
+                correspondingDriver.setAccount(updateSessionUser.getAccount());
+                correspondingDriver.setUsername(updateSessionUser.getUsername());
+                return App.getDbManager().updateDriver(uID, correspondingDriver);
+            });
+        }
     }
 
     /**
      * Calls the AuthDBManager class to logout the user.
      */
     private static void logoutUser() {
+        if (locationPublisher != null) {
+            locationPublisher.clear();
+        }
+        if (tripHistorySweeper != null) {
+            tripHistorySweeper.stop();
+        }
+        App.getDbManager().getQueryListeners().clear();
+        App.getDbManager().clearUserCache();
+        App.getDbManager().getTripListeners().detachAll();
         App.getModel().clearModelForLogout();
         App.getAuthDBManager().signOut();
     }
@@ -0,0 +1,156 @@
+package com.ownmyway.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.ownmyway.App;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.User;
+import com.ownmyway.model.UserLocation;
+
+/**
+ * Publishes the session user's location to Firebase at a bounded rate. GPS fixes arrive about
+ * once a second, so a fix is dropped if it comes too soon after the last accepted fix or is too
+ * close to it. Accepted fixes are coalesced, only the latest one is kept, and it is written at
+ * most once per interval. The interval is short while a trip is under way and someone is following
+ * the user's position, and long otherwise, so a live location costs at most
+ * 60000 / ACTIVE_INTERVAL_MILLIS writes a minute.
+ * Must be called on the main thread, which is also where writes complete.
+ */
+public class LocationPublisher {
+
+    private static final String TAG = "In Location Publisher";
+
+    /** Fixes closer than this to the last accepted fix are dropped, in kilometers */
+    static final double MIN_DISTANCE_KM = 0.015;
+    /** Fixes sooner than this after the last accepted fix are dropped */
+    static final long MIN_FIX_INTERVAL_MILLIS = 2000;
+    /** Interval between writes while a driver is picking up or driving the rider */
+    static final long ACTIVE_INTERVAL_MILLIS = 5000;
+    /** Interval between writes otherwise */
+    static final long IDLE_INTERVAL_MILLIS = 30000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flush = this::flush;
+
+    private Fix lastAccepted;
+    private long lastAcceptedAt;
+    private long lastWriteAt;
+    private Fix pending;
+    private boolean writing;
+    private boolean scheduled;
+
+    /**
+     * Takes a GPS fix of the session user. The fix is dropped, kept to be written later or
+     * written right away.
+     * @param docID the doc id of the user
+     * @param type the profile the user is logged in with
+     * @param location the fix
+     */
+    public void submit(String docID, User.TYPE type, UserLocation location) {
+        long now = System.currentTimeMillis();
+        if (lastAccepted != null && !lastAccepted.sameUser(docID, type)) {
+            // Another profile is logged in, nothing of the last one is published any more
+            clear();
+        }
+        if (lastAccepted != null && (now - lastAcceptedAt < MIN_FIX_INTERVAL_MILLIS ||
+                location.equirectangularDistanceTo(lastAccepted.location) < MIN_DISTANCE_KM)) {
+            return;
+        }
+        lastAccepted = new Fix(docID, type, location);
+        lastAcceptedAt = now;
+        pending = lastAccepted;
+        schedule();
+    }
+
+    /**
+     * Drops any fix not yet written, used when the user logs out
+     */
+    public void clear() {
+        pending = null;
+        lastAccepted = null;
+        handler.removeCallbacks(flush);
+        scheduled = false;
+    }
+
+    /**
+     * Writes the pending fix now if the interval has passed, otherwise once it has
+     */
+    private void schedule() {
+        if (pending == null || writing) {
+            // A write in flight schedules the next one when it completes
+            return;
+        }
+        long wait = lastWriteAt + interval() - System.currentTimeMillis();
+        if (wait <= 0) {
+            handler.removeCallbacks(flush);
+            scheduled = false;
+            flush();
+        } else if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(flush, wait);
+        }
+    }
+
+    private void flush() {
+        scheduled = false;
+        if (pending == null || writing) {
+            return;
+        }
+        if (System.currentTimeMillis() < lastWriteAt + interval()) {
+            // The trip ended while waiting and the interval grew
+            schedule();
+            return;
+        }
+
+        Fix fix = pending;
+        pending = null;
+        writing = true;
+        lastWriteAt = System.currentTimeMillis();
+        App.getDbManager().updateUserLocation(fix.docID, fix.type, fix.location)
+                .addOnCompleteListener(task -> {
+                    writing = false;
+                    if (!task.isSuccessful()) {
+                        Log.d(TAG, "Location not published, retrying with the next write");
+                        // Retry unless a newer fix came in or the user logged out meanwhile
+                        if (pending == null && lastAccepted == fix) {
+                            pending = fix;
+                        }
+                    }
+                    schedule();
+                });
+    }
+
+    /**
+     * The interval between writes, short while the session trip is under way
+     */
+    private long interval() {
+        Trip trip = App.getModel().getSessionTrip();
+        if (trip != null && (trip.getStatus() == Trip.STATUS.DRIVER_PICKING_UP ||
+                trip.getStatus() == Trip.STATUS.DRIVER_ARRIVED ||
+                trip.getStatus() == Trip.STATUS.EN_ROUTE)) {
+            return ACTIVE_INTERVAL_MILLIS;
+        }
+        return IDLE_INTERVAL_MILLIS;
+    }
+
+    /**
+     * A fix waiting to be written and whose profile it belongs to
+     */
+    private static class Fix {
+        private final String docID;
+        private final User.TYPE type;
+        private final UserLocation location;
+
+        private Fix(String docID, User.TYPE type, UserLocation location) {
+            this.docID = docID;
+            this.type = type;
+            this.location = location;
+        }
+
+        private boolean sameUser(String docID, User.TYPE type) {
+            return this.docID.equals(docID) && this.type == type;
+        }
+    }
+}
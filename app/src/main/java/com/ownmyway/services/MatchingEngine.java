@@ -0,0 +1,385 @@
+package com.ownmyway.services;
+
+import com.ownmyway.model.Driver;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripGrid;
+import com.ownmyway.model.UserLocation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Assigns pending trips to available drivers a batch at a time, instead of every driver picking
+ * from the same list by hand. A batch is some of the pending trips and the drivers that are logged
+ * on, have a location and are still free. Only pairs whose pickup is within maxPickupKm are considered.
+ * The greedy strategy repeatedly pairs the closest free driver and trip. The optimal strategy
+ * minimizes the total pickup distance over the largest number of pairs (Hungarian algorithm),
+ * and falls back to the greedy assignment if it does not finish within the time budget.
+ * The engine only computes assignments, the caller accepts them through DBManager.acceptTrip.
+ */
+public class MatchingEngine {
+
+    public enum Strategy {
+        GREEDY,
+        OPTIMAL,
+    }
+
+    /** Cost of a pair that cannot be matched, larger than the total of any real assignment */
+    private static final double UNMATCHABLE = 1e9;
+    private static final double GRID_CELL_KM = 1.0;
+
+    private final double maxPickupKm;
+    private final int batchSize;
+    private final long timeBudgetNanos;
+
+    /**
+     * @param maxPickupKm the farthest a driver is sent to pick up a rider, in kilometers
+     * @param batchSize the number of trips matched together
+     * @param timeBudgetMillis how long the optimal strategy may run before the greedy assignment is used
+     */
+    public MatchingEngine(double maxPickupKm, int batchSize, long timeBudgetMillis) {
+        this.maxPickupKm = maxPickupKm;
+        this.batchSize = batchSize;
+        this.timeBudgetNanos = timeBudgetMillis * 1000000;
+    }
+
+    /**
+     * Whether a driver can be given a trip: logged on and with a known location
+     */
+    public static boolean isAvailable(Driver driver) {
+        return driver.getDriverLoggedOn() && driver.getCurrentUserLocation() != null;
+    }
+
+    /**
+     * Matches pending trips to available drivers. Trips that are not pending and drivers that are
+     * not available are skipped. The trips are matched in batches of batchSize, oldest first, so the
+     * riders who have waited longest get the free drivers first and the optimal strategy works on
+     * a problem of bounded size. Once the time budget is spent the remaining batches are greedy.
+     * @param trips the trips to assign
+     * @param drivers the drivers to assign them to
+     * @param strategy how to pick the pairs
+     * @return the pairs picked and how well the matching went
+     */
+    public Result match(List<Trip> trips, List<Driver> drivers, Strategy strategy) {
+        long start = System.nanoTime();
+        long deadline = start + timeBudgetNanos;
+        List<Trip> pending = new ArrayList<>();
+        for (Trip trip : trips) {
+            if (trip.getStatus() == Trip.STATUS.PENDING && trip.getStartUserLocation() != null) {
+                pending.add(trip);
+            }
+        }
+        Collections.sort(pending, (a, b) -> Long.compare(a.getCreatedAt(), b.getCreatedAt()));
+        List<Driver> free = new ArrayList<>();
+        for (Driver driver : drivers) {
+            if (isAvailable(driver)) {
+                free.add(driver);
+            }
+        }
+        int availableDrivers = free.size();
+
+        List<Assignment> assignments = new ArrayList<>();
+        int batches = 0;
+        int optimalBatches = 0;
+        for (int from = 0; from < pending.size() && !free.isEmpty(); from += batchSize) {
+            List<Trip> batch = pending.subList(from, Math.min(from + batchSize, pending.size()));
+            List<Assignment> pairs = pairsWithinReach(batch, free);
+            List<Assignment> picked = null;
+            if (strategy == Strategy.OPTIMAL && System.nanoTime() < deadline) {
+                picked = optimal(pairs, deadline);
+            }
+            if (picked != null) {
+                optimalBatches++;
+            } else {
+                picked = greedy(pairs);
+            }
+            batches++;
+            Set<String> assignedDrivers = new HashSet<>();
+            for (Assignment assignment : picked) {
+                assignedDrivers.add(assignment.driver.getDocID());
+            }
+            Iterator<Driver> iterator = free.iterator();
+            while (iterator.hasNext()) {
+                if (assignedDrivers.contains(iterator.next().getDocID())) {
+                    iterator.remove();
+                }
+            }
+            assignments.addAll(picked);
+        }
+
+        double totalPickupKm = 0;
+        for (Assignment assignment : assignments) {
+            totalPickupKm += assignment.pickupKm;
+        }
+        Stats stats = new Stats(pending.size(), availableDrivers, assignments.size(),
+                assignments.isEmpty() ? 0 : totalPickupKm / assignments.size(), batches, optimalBatches,
+                System.nanoTime() - start);
+        return new Result(assignments, stats);
+    }
+
+    /**
+     * Every pair of a trip and a driver within maxPickupKm of its start, found through a grid of
+     * the trips instead of measuring every pair
+     */
+    private List<Assignment> pairsWithinReach(List<Trip> trips, List<Driver> drivers) {
+        TripGrid grid = new TripGrid(GRID_CELL_KM);
+        for (Trip trip : trips) {
+            grid.put(trip);
+        }
+        List<Assignment> pairs = new ArrayList<>();
+        for (Driver driver : drivers) {
+            UserLocation location = driver.getCurrentUserLocation();
+            for (Trip trip : grid.withinRadius(location, maxPickupKm)) {
+                pairs.add(new Assignment(trip, driver, location.haversineDistanceTo(trip.getStartUserLocation())));
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Takes the closest remaining pair until no free driver can reach a free trip
+     */
+    private static List<Assignment> greedy(List<Assignment> pairs) {
+        List<Assignment> sorted = new ArrayList<>(pairs);
+        Collections.sort(sorted, (a, b) -> Double.compare(a.pickupKm, b.pickupKm));
+        Set<String> usedTrips = new HashSet<>();
+        Set<String> usedDrivers = new HashSet<>();
+        List<Assignment> assignments = new ArrayList<>();
+        for (Assignment pair : sorted) {
+            if (!usedTrips.contains(pair.trip.getRiderID()) && !usedDrivers.contains(pair.driver.getDocID())) {
+                usedTrips.add(pair.trip.getRiderID());
+                usedDrivers.add(pair.driver.getDocID());
+                assignments.add(pair);
+            }
+        }
+        return assignments;
+    }
+
+    /**
+     * Minimum total pickup distance over the largest number of pairs, by the Hungarian algorithm
+     * on the drivers and trips that have a pair
+     * @param deadline System.nanoTime past which the search is abandoned
+     * @return the assignment, or null if the deadline passed first
+     */
+    private static List<Assignment> optimal(List<Assignment> pairs, long deadline) {
+        HashMap<String, Integer> driverIndex = new HashMap<>();
+        HashMap<String, Integer> tripIndex = new HashMap<>();
+        for (Assignment pair : pairs) {
+            if (!driverIndex.containsKey(pair.driver.getDocID())) {
+                driverIndex.put(pair.driver.getDocID(), driverIndex.size());
+            }
+            if (!tripIndex.containsKey(pair.trip.getRiderID())) {
+                tripIndex.put(pair.trip.getRiderID(), tripIndex.size());
+            }
+        }
+        // The algorithm wants no more rows than columns
+        boolean driverRows = driverIndex.size() <= tripIndex.size();
+        int n = driverRows ? driverIndex.size() : tripIndex.size();
+        int m = driverRows ? tripIndex.size() : driverIndex.size();
+        double[][] cost = new double[n][m];
+        Assignment[][] pairAt = new Assignment[n][m];
+        for (double[] row : cost) {
+            Arrays.fill(row, UNMATCHABLE);
+        }
+        for (Assignment pair : pairs) {
+            int d = driverIndex.get(pair.driver.getDocID());
+            int t = tripIndex.get(pair.trip.getRiderID());
+            int row = driverRows ? d : t;
+            int column = driverRows ? t : d;
+            cost[row][column] = pair.pickupKm;
+            pairAt[row][column] = pair;
+        }
+
+        int[] columnOfRow = hungarian(cost, n, m, deadline);
+        if (columnOfRow == null) {
+            return null;
+        }
+        List<Assignment> assignments = new ArrayList<>();
+        for (int row = 0; row < n; row++) {
+            Assignment pair = pairAt[row][columnOfRow[row]];
+            if (pair != null) {
+                assignments.add(pair);
+            }
+        }
+        return assignments;
+    }
+
+    /**
+     * Kuhn-Munkres with potentials, O(n^2 m) for n rows and m >= n columns
+     * @return the column assigned to each row, or null if the deadline passed first
+     */
+    private static int[] hungarian(double[][] cost, int n, int m, long deadline) {
+        // 1-based, index 0 is the virtual row and column the augmenting paths start from
+        double[] u = new double[n + 1];
+        double[] v = new double[m + 1];
+        int[] rowOfColumn = new int[m + 1];
+        int[] way = new int[m + 1];
+        double[] minv = new double[m + 1];
+        boolean[] used = new boolean[m + 1];
+        for (int i = 1; i <= n; i++) {
+            if (System.nanoTime() > deadline) {
+                return null;
+            }
+            rowOfColumn[0] = i;
+            int column = 0;
+            Arrays.fill(minv, Double.POSITIVE_INFINITY);
+            Arrays.fill(used, false);
+            do {
+                used[column] = true;
+                int row = rowOfColumn[column];
+                double delta = Double.POSITIVE_INFINITY;
+                int next = 0;
+                for (int j = 1; j <= m; j++) {
+                    if (!used[j]) {
+                        double reduced = cost[row - 1][j - 1] - u[row] - v[j];
+                        if (reduced < minv[j]) {
+                            minv[j] = reduced;
+                            way[j] = column;
+                        }
+                        if (minv[j] < delta) {
+                            delta = minv[j];
+                            next = j;
+                        }
+                    }
+                }
+                for (int j = 0; j <= m; j++) {
+                    if (used[j]) {
+                        u[rowOfColumn[j]] += delta;
+                        v[j] -= delta;
+                    } else {
+                        minv[j] -= delta;
+                    }
+                }
+                column = next;
+            } while (rowOfColumn[column] != 0);
+            do {
+                int previous = way[column];
+                rowOfColumn[column] = rowOfColumn[previous];
+                column = previous;
+            } while (column != 0);
+        }
+        int[] columnOfRow = new int[n];
+        for (int j = 1; j <= m; j++) {
+            if (rowOfColumn[j] != 0) {
+                columnOfRow[rowOfColumn[j] - 1] = j - 1;
+            }
+        }
+        return columnOfRow;
+    }
+
+    /**
+     * A trip given to a driver and how far the driver is from the pickup
+     */
+    public static class Assignment {
+        private final Trip trip;
+        private final Driver driver;
+        private final double pickupKm;
+
+        private Assignment(Trip trip, Driver driver, double pickupKm) {
+            this.trip = trip;
+            this.driver = driver;
+            this.pickupKm = pickupKm;
+        }
+
+        public Trip getTrip() {
+            return trip;
+        }
+
+        public Driver getDriver() {
+            return driver;
+        }
+
+        public double getPickupKm() {
+            return pickupKm;
+        }
+    }
+
+    /**
+     * How a batch went
+     */
+    public static class Stats {
+        private final int pendingTrips;
+        private final int availableDrivers;
+        private final int assigned;
+        private final double averagePickupKm;
+        private final int batches;
+        private final int optimalBatches;
+        private final long elapsedNanos;
+
+        private Stats(int pendingTrips, int availableDrivers, int assigned, double averagePickupKm,
+                      int batches, int optimalBatches, long elapsedNanos) {
+            this.pendingTrips = pendingTrips;
+            this.availableDrivers = availableDrivers;
+            this.assigned = assigned;
+            this.averagePickupKm = averagePickupKm;
+            this.batches = batches;
+            this.optimalBatches = optimalBatches;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getPendingTrips() {
+            return pendingTrips;
+        }
+
+        public int getAvailableDrivers() {
+            return availableDrivers;
+        }
+
+        public int getAssigned() {
+            return assigned;
+        }
+
+        public double getAveragePickupKm() {
+            return averagePickupKm;
+        }
+
+        public int getBatches() {
+            return batches;
+        }
+
+        /**
+         * The batches matched by the optimal strategy, the others were greedy
+         */
+        public int getOptimalBatches() {
+            return optimalBatches;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Assignments made per second
+         */
+        public double getThroughput() {
+            return elapsedNanos > 0 ? assigned * 1e9 / elapsedNanos : 0;
+        }
+    }
+
+    /**
+     * The assignments of a batch and how it went
+     */
+    public static class Result {
+        private final List<Assignment> assignments;
+        private final Stats stats;
+
+        private Result(List<Assignment> assignments, Stats stats) {
+            this.assignments = assignments;
+            this.stats = stats;
+        }
+
+        public List<Assignment> getAssignments() {
+            return assignments;
+        }
+
+        public Stats getStats() {
+            return stats;
+        }
+    }
+}
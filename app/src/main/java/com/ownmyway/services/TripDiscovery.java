@@ -0,0 +1,242 @@
+package com.ownmyway.services;
+
+import com.ownmyway.App;
+import com.ownmyway.db.TripFeedListener;
+import com.ownmyway.db.TripPager;
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.TripDelta;
+import com.ownmyway.model.TripGrid;
+import com.ownmyway.model.UserLocation;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.firebase.firestore.ListenerRegistration;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the pending trips a driver is shown, without a fixed search radius. In nearest mode the
+ * search starts with a small radius and doubles it until it holds k trips or MAX_RADIUS_KM is
+ * reached, so a driver downtown gets the closest few trips and a driver in the suburbs still gets
+ * some. In bounds mode the search radius reaches every corner of the visible map area, however far
+ * it is zoomed out, and the trips inside the area are returned; MAX_RADIUS_KM only bounds the
+ * nearest mode. Reading stops at MAX_CANDIDATES trips, taken from the cells nearest the center
+ * first, so in a large area with more trips than that the ones far from the center can be missed.
+ * Either way the k best trips of the search are shown, best first, as ranked by a TripRanker.
+ * Trips of a radius are read through a TripPager, every page of it, and kept in a TripGrid. The
+ * listener gets the trips that entered or left the selection and the new order of the selection,
+ * and keeps getting them as trips change, until the discovery is removed.
+ */
+public class TripDiscovery implements ListenerRegistration {
+
+    static final double INITIAL_RADIUS_KM = 1.0;
+    static final double MAX_RADIUS_KM = 25.0;
+    static final int PAGE_SIZE = 50;
+    /** A radius stops reading pages once this many trips are loaded, its farthest trips are then left out */
+    static final int MAX_CANDIDATES = 500;
+    private static final double GRID_CELL_KM = 1.0;
+
+    private final UserLocation center;
+    private final LatLngBounds bounds;
+    private final UserLocation driverLocation;
+    private final TripRanker ranker;
+    private final String excludedRiderID;
+    private final TripFeedListener listener;
+    private final int step;
+    private final TripGrid candidates = new TripGrid(GRID_CELL_KM);
+    private final LinkedHashMap<String, Trip> shown = new LinkedHashMap<>();
+    private int k;
+    private double radiusKm;
+    private TripPager pager;
+    private boolean delivered;
+    private boolean removed;
+
+    private TripDiscovery(UserLocation center, LatLngBounds bounds, UserLocation driverLocation, TripRanker ranker,
+                          double radiusKm, int k, String excludedRiderID, TripFeedListener listener) {
+        this.center = center;
+        this.bounds = bounds;
+        this.driverLocation = driverLocation;
+        this.ranker = ranker;
+        this.radiusKm = radiusKm;
+        this.k = k;
+        this.step = k;
+        this.excludedRiderID = excludedRiderID;
+        this.listener = listener;
+    }
+
+    /**
+     * Finds the k best pending trips within the smallest radius of a location that holds k of them
+     * @param center the driver's location
+     * @param k the number of trips wanted, more are added by loadNextPage
+     * @param excludedRiderID trips of this rider are never returned, the driver's own
+     * @param ranker scores the trips found
+     * @param listener receives the trips that entered or left the k best, and their order
+     */
+    public static TripDiscovery nearest(UserLocation center, int k, String excludedRiderID, TripRanker ranker,
+                                        TripFeedListener listener) {
+        TripDiscovery discovery = new TripDiscovery(center, null, center, ranker, INITIAL_RADIUS_KM, k,
+                excludedRiderID, listener);
+        discovery.open();
+        return discovery;
+    }
+
+    /**
+     * Finds the pending trips starting inside a map area, the best limit of them
+     * @param bounds the visible map area
+     * @param driverLocation the driver's location, pickup distances are measured from it
+     * @param limit the number of trips wanted, more are added by loadNextPage
+     * @param excludedRiderID trips of this rider are never returned, the driver's own
+     * @param ranker scores the trips found
+     * @param listener receives the trips that entered or left the best of the area, and their order
+     */
+    public static TripDiscovery within(LatLngBounds bounds, UserLocation driverLocation, int limit,
+                                       String excludedRiderID, TripRanker ranker, TripFeedListener listener) {
+        LatLng middle = bounds.getCenter();
+        UserLocation center = new UserLocation(middle.latitude, middle.longitude);
+        // Reaching the farthest corner covers the whole area, not capped so no part of it is left out
+        double radiusKm = Math.max(
+                center.haversineDistanceTo(new UserLocation(bounds.southwest.latitude, bounds.southwest.longitude)),
+                center.haversineDistanceTo(new UserLocation(bounds.northeast.latitude, bounds.northeast.longitude)));
+        TripDiscovery discovery = new TripDiscovery(center, bounds, driverLocation, ranker,
+                radiusKm, limit, excludedRiderID, listener);
+        discovery.open();
+        return discovery;
+    }
+
+    /**
+     * Whether more trips may be found
+     */
+    public synchronized boolean hasMore() {
+        return shown.size() >= k && (radiusKm < MAX_RADIUS_KM || candidates.size() > k);
+    }
+
+    /**
+     * Asks for more trips once every trip asked for so far is shown, searching farther if needed.
+     * Safe to call on every scroll event.
+     */
+    public void loadNextPage() {
+        synchronized (this) {
+            if (removed || !hasMore()) {
+                return;
+            }
+            k += step;
+        }
+        update();
+    }
+
+    @Override
+    public synchronized void remove() {
+        removed = true;
+        if (pager != null) {
+            pager.remove();
+        }
+    }
+
+    private synchronized void open() {
+        pager = App.getDbManager().pageTripsNear(center, radiusKm, PAGE_SIZE, this::onTripDelta);
+    }
+
+    private void onTripDelta(TripDelta delta, Error err) {
+        if (err != null) {
+            listener.onTripDelta(null, err);
+            return;
+        }
+        synchronized (this) {
+            if (removed) {
+                return;
+            }
+            for (String tripID : delta.getRemovedIds()) {
+                candidates.remove(tripID);
+            }
+            for (Trip trip : delta.getUpserted()) {
+                if (trip.getStatus() == Trip.STATUS.PENDING && !trip.getRiderID().equals(excludedRiderID)) {
+                    candidates.put(trip);
+                } else {
+                    candidates.remove(trip.getRiderID());
+                }
+            }
+        }
+        update();
+    }
+
+    /**
+     * Reads the rest of the radius, widens it if it holds too few trips, and once it is read
+     * delivers the trips that entered or left the selection
+     */
+    private void update() {
+        TripDelta changes;
+        synchronized (this) {
+            if (removed || pager == null) {
+                return;
+            }
+            if (pager.hasMore() && candidates.size() < MAX_CANDIDATES) {
+                pager.loadNextPage();
+                if (pager.hasMore()) {
+                    // Called again once the page is read
+                    return;
+                }
+            }
+            if (bounds == null && radiusKm < MAX_RADIUS_KM && candidates.withinRadius(center, radiusKm).size() < k) {
+                pager.remove();
+                // The wider radius reads every trip of this one again, and trips removed meanwhile drop out
+                candidates.clear();
+                radiusKm = Math.min(radiusKm * 2, MAX_RADIUS_KM);
+                open();
+                return;
+            }
+            changes = select();
+            if (delivered && changes.isEmpty()) {
+                return;
+            }
+            delivered = true;
+        }
+        listener.onTripDelta(changes, null);
+    }
+
+    /**
+     * Picks the trips to show and records the changes from the trips shown so far
+     */
+    private TripDelta select() {
+        List<Trip> found = candidates.withinRadius(center, radiusKm);
+        if (bounds != null) {
+            List<Trip> inBounds = new ArrayList<>(found.size());
+            for (Trip trip : found) {
+                if (bounds.contains(trip.getStartUserLocation().generateLatLng())) {
+                    inBounds.add(trip);
+                }
+            }
+            found = inBounds;
+        }
+        List<Trip> selected = ranker.top(found, driverLocation, k, System.currentTimeMillis());
+        TripDelta changes = new TripDelta();
+        Set<String> selectedIDs = new HashSet<>();
+        for (Trip trip : selected) {
+            selectedIDs.add(trip.getRiderID());
+            if (shown.get(trip.getRiderID()) != trip) {
+                changes.upsert(trip);
+            }
+        }
+        for (String tripID : shown.keySet()) {
+            if (!selectedIDs.contains(tripID)) {
+                changes.remove(tripID);
+            }
+        }
+        List<String> order = new ArrayList<>(selected.size());
+        for (Trip trip : selected) {
+            order.add(trip.getRiderID());
+        }
+        List<String> shownOrder = new ArrayList<>(shown.keySet());
+        shownOrder.removeAll(changes.getRemovedIds());
+        if (!order.equals(shownOrder)) {
+            changes.setOrder(order);
+        }
+        shown.clear();
+        for (Trip trip : selected) {
+            shown.put(trip.getRiderID(), trip);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,56 @@
+package com.ownmyway.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.ownmyway.App;
+
+/**
+ * Archives finished trips in the background while a user is logged in. The first sweep runs a
+ * little after login, so it does not compete with the requests that load the user's screen, and
+ * the next ones every SWEEP_INTERVAL_MILLIS. Each sweep is batched by DBManager and bounded, so a
+ * backlog of trips is worked off over several sweeps.
+ * Must be called on the main thread.
+ */
+public class TripHistorySweeper {
+
+    private static final String TAG = "In Trip History Sweeper";
+
+    static final long FIRST_SWEEP_DELAY_MILLIS = 60 * 1000;
+    static final long SWEEP_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable sweep = this::sweep;
+    private boolean running;
+
+    /**
+     * Starts sweeping, does nothing if already started
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        handler.postDelayed(sweep, FIRST_SWEEP_DELAY_MILLIS);
+    }
+
+    /**
+     * Stops sweeping, used when the user logs out. A sweep in flight still completes.
+     */
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(sweep);
+    }
+
+    private void sweep() {
+        App.getDbManager().archiveFinishedTrips().addOnCompleteListener(task -> {
+            if (task.isSuccessful()) {
+                Log.d(TAG, "Archived " + task.getResult() + " trips");
+            }
+            if (running) {
+                handler.postDelayed(sweep, SWEEP_INTERVAL_MILLIS);
+            }
+        });
+    }
+}
@@ -0,0 +1,102 @@
+package com.ownmyway.services;
+
+import com.ownmyway.model.Trip;
+import com.ownmyway.model.UserLocation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Ranks the trips shown to a driver by a score combining the fare offered, the distance to the
+ * pickup and how long the rider has been waiting:
+ *   score = fareWeight * fare - distanceWeight * pickupKm + ageWeight * min(waitingMinutes, maxAgeMinutes)
+ * Waiting time is capped so a trip nobody wants does not stay on top forever.
+ * Only the best k trips are kept, in a heap of k trips, so ranking costs n log k for n candidates
+ * and the candidates are never sorted as a whole.
+ */
+public class TripRanker {
+
+    /** A dollar of fare is worth half a kilometer of pickup, a minute of waiting a fifth of a dollar */
+    public static final TripRanker DEFAULT = new TripRanker(1.0, 2.0, 0.2, 30);
+
+    private static final Comparator<Scored> WORST_FIRST = (a, b) -> {
+        int byScore = Double.compare(a.score, b.score);
+        // Ties are broken by id so the order does not flicker between updates
+        return byScore != 0 ? byScore : b.trip.getRiderID().compareTo(a.trip.getRiderID());
+    };
+
+    private final double fareWeight;
+    private final double distanceWeight;
+    private final double ageWeight;
+    private final double maxAgeMinutes;
+
+    /**
+     * @param fareWeight score per dollar offered
+     * @param distanceWeight score taken off per kilometer to the pickup
+     * @param ageWeight score per minute the rider has been waiting
+     * @param maxAgeMinutes waiting time past which a trip gains no more score
+     */
+    public TripRanker(double fareWeight, double distanceWeight, double ageWeight, double maxAgeMinutes) {
+        this.fareWeight = fareWeight;
+        this.distanceWeight = distanceWeight;
+        this.ageWeight = ageWeight;
+        this.maxAgeMinutes = maxAgeMinutes;
+    }
+
+    /**
+     * The score of a trip for a driver, higher is better
+     * @param trip the trip
+     * @param driverLocation where the driver is
+     * @param now the current time in milliseconds since epoch
+     */
+    public double score(Trip trip, UserLocation driverLocation, long now) {
+        double pickupKm = driverLocation.haversineDistanceTo(trip.getStartUserLocation());
+        double waitingMinutes = Math.max(0, now - trip.getCreatedAt()) / 60000.0;
+        return fareWeight * trip.getFareOffering() - distanceWeight * pickupKm
+                + ageWeight * Math.min(waitingMinutes, maxAgeMinutes);
+    }
+
+    /**
+     * The k best trips, best first
+     * @param candidates the trips to rank, all with a start location
+     * @param driverLocation where the driver is
+     * @param k the number of trips wanted
+     * @param now the current time in milliseconds since epoch
+     */
+    public List<Trip> top(Collection<Trip> candidates, UserLocation driverLocation, int k, long now) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        // The worst of the best k so far is at the head, and is dropped when a better trip comes
+        PriorityQueue<Scored> best = new PriorityQueue<>(k, WORST_FIRST);
+        for (Trip trip : candidates) {
+            Scored scored = new Scored(trip, score(trip, driverLocation, now));
+            if (best.size() < k) {
+                best.add(scored);
+            } else if (WORST_FIRST.compare(scored, best.peek()) > 0) {
+                best.poll();
+                best.add(scored);
+            }
+        }
+        List<Trip> trips = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            trips.add(best.poll().trip);
+        }
+        Collections.reverse(trips);
+        return trips;
+    }
+
+    private static class Scored {
+        private final Trip trip;
+        private final double score;
+
+        private Scored(Trip trip, double score) {
+            this.trip = trip;
+            this.score = score;
+        }
+    }
+}
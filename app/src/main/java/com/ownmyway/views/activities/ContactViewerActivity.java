@@ -17,15 +17,17 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.ownmyway.App;
+import com.ownmyway.db.DBTasks;
 import com.ownmyway.model.ApplicationModel;
-import com.ownmyway.model.Driver;
 import com.ownmyway.model.User;
 import com.ownmyway.R;
+import com.google.android.gms.tasks.CancellationTokenSource;
 
 public class ContactViewerActivity extends AppCompatActivity {
     private String email;
     private String phoneNumber;
     private TextView ratingText;
+    private final CancellationTokenSource pendingReads = new CancellationTokenSource();
     private static final int PERMISSIONS_REQUEST_ACCESS_CALL_PHONE = 1232;
 
     /**
@@ -70,13 +72,11 @@ public class ContactViewerActivity extends AppCompatActivity {
             ratingText.setVisibility(View.VISIBLE);
             ratingBanner.setVisibility(View.VISIBLE);
             String driverID = m.getSessionTrip().getDriverID();
-            App.getDbManager().getDriver(driverID, (resultData, err) -> {
-                if (resultData != null) {
-                    Driver driver = (Driver) resultData.get("user");
-                    assert driver != null;
-                    ratingText.setText(driver.getRating() + "/ 100.0");
-                }
-            });
+            DBTasks.cancellable(App.getDbManager().getCachedDriver(driverID), pendingReads.getToken())
+                    .addOnSuccessListener(driver -> {
+                        assert driver != null;
+                        ratingText.setText(driver.getRating() + "/ 100.0");
+                    });
         } else {
             ratingText.setVisibility(View.INVISIBLE);
             ratingBanner.setVisibility(View.INVISIBLE);
@@ -93,6 +93,15 @@ public class ContactViewerActivity extends AppCompatActivity {
         emailButton.setOnClickListener(v -> this.handleEmailRequest());
     }
 
+    /**
+     * onDestroy stops waiting on the driver rating once the activity is closed
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        pendingReads.cancel();
+    }
+
     /**
      * handlePhoneRequest function handles user interaction with the phone button
      * it allows user to call another users phone number
@@ -7,9 +7,10 @@ import androidx.appcompat.app.AppCompatActivity;
 
 import com.ownmyway.App;
 import com.ownmyway.controllers.ApplicationController;
+import com.ownmyway.db.DBTasks;
 import com.ownmyway.model.ApplicationModel;
-import com.ownmyway.model.User;
 import com.ownmyway.views.UIErrorHandler;
+import com.google.android.gms.tasks.CancellationTokenSource;
 
 import java.util.Observable;
 import java.util.Observer;
@@ -19,6 +20,7 @@ import java.util.Observer;
  * to either the Login or Main map activity (in case the user is already logged in)
  */
 public class MainActivity extends AppCompatActivity implements Observer, UIErrorHandler {
+    private final CancellationTokenSource pendingReads = new CancellationTokenSource();
 
     /**onCreate method creates the MainActivity when called
      * @param savedInstanceState is an previous saved state if applicable*/
@@ -35,6 +37,7 @@ public class MainActivity extends AppCompatActivity implements Observer, UIError
     @Override
     public void onDestroy() {
         super.onDestroy();
+        pendingReads.cancel();
         ApplicationModel m = App.getModel();
         m.deleteObserver(this);
     }
@@ -46,17 +49,13 @@ public class MainActivity extends AppCompatActivity implements Observer, UIError
      * user is logged in */
     private void determineLoginStatus() {
         if(App.getAuthDBManager().isLoggedIn()) {
-            App.getAuthDBManager().getCurrentSessionUser((resultData, err) -> {
-                if (resultData != null) {
-                    User tmpUser = (User) resultData.get("user");
-                    App.getModel().setSessionUser(tmpUser);
-                    Intent i = new Intent(MainActivity.this, MapActivity.class);
-                    ApplicationController.loadSessionTrip(i, this);  // now determine trip status
-                }
-                else {
-                    Toast.makeText(this, err.getMessage(), Toast.LENGTH_LONG).show();
-                }
-            });
+            DBTasks.cancellable(App.getAuthDBManager().getCurrentSessionUser(), pendingReads.getToken())
+                    .addOnSuccessListener(tmpUser -> {
+                        App.getModel().setSessionUser(tmpUser);
+                        Intent i = new Intent(MainActivity.this, MapActivity.class);
+                        ApplicationController.loadSessionTrip(i, this);  // now determine trip status
+                    })
+                    .addOnFailureListener(e -> Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show());
         } else {
             startActivity(new Intent(MainActivity.this, LoginActivity.class));
             this.finish();
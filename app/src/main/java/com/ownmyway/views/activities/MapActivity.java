@@ -216,7 +216,7 @@ public class MapActivity extends AppCompatActivity implements Observer, OnMapRea
                 UserLocation driverLoc = new UserLocation(
                         mLastKnownUserLocation.getLatitude(),
                         mLastKnownUserLocation.getLongitude());
-                if (startUserLocation.distanceTo(driverLoc) <= GEOFENCE_DETECTION_TOLERANCE) {
+                if (startUserLocation.equirectangularDistanceTo(driverLoc) <= GEOFENCE_DETECTION_TOLERANCE) {
                     Toast.makeText(getBaseContext(), "Notifying rider you have arrived...", Toast.LENGTH_LONG).show();
                     ApplicationController.handleNotifyRiderForPickup();
                 }
@@ -226,8 +226,8 @@ public class MapActivity extends AppCompatActivity implements Observer, OnMapRea
                 UserLocation riderLoc = new UserLocation(
                         mLastKnownUserLocation.getLatitude(),
                         mLastKnownUserLocation.getLongitude());
-                Log.d("", "" + riderLoc.distanceTo(endUserLocation));
-                if (riderLoc.distanceTo(endUserLocation) <= GEOFENCE_DETECTION_TOLERANCE) {
+                Log.d("", "" + riderLoc.equirectangularDistanceTo(endUserLocation));
+                if (riderLoc.equirectangularDistanceTo(endUserLocation) <= GEOFENCE_DETECTION_TOLERANCE) {
                     ApplicationController.completeTrip();
                 }
             }
@@ -255,9 +255,21 @@ public class MapActivity extends AppCompatActivity implements Observer, OnMapRea
             }
         });
 
+        // A driver who moves the map to another area is shown the trips there when searching
+        mMap.setOnCameraIdleListener(() -> {
+            User sessionUser = App.getModel().getSessionUser();
+            if (sessionUser != null && sessionUser.getType() == User.TYPE.DRIVER) {
+                ApplicationController.updateTripSearchBounds(
+                        mMap.getProjection().getVisibleRegion().latLngBounds);
+            }
+        });
+
         LocationListener locationListener = new LocationListener() {
             @Override
             public void onLocationChanged(Location location) {
+                App.getController().updateUserLocation(new UserLocation(
+                        location.getLatitude(),
+                        location.getLongitude()));
                 updateOnLocationChange();
             }
 
@@ -334,7 +346,7 @@ public class MapActivity extends AppCompatActivity implements Observer, OnMapRea
 
                         if (updateFirebase) {
                             App.getController().updateUserLocation(new UserLocation(
-                                                    mLastKnownUserLocation.getAltitude(),
+                                                    mLastKnownUserLocation.getLatitude(),
                                                     mLastKnownUserLocation.getLongitude()));
                         }
 
@@ -481,7 +493,7 @@ public class MapActivity extends AppCompatActivity implements Observer, OnMapRea
             UserLocation ith_route = new UserLocation(routePointList.get(i).latitude,
                     routePointList.get(i).longitude);
             //Checking if current location is on polyline and/or within 40m geofence tolerance
-            if (currentUserLocation.distanceTo(ith_route) <= GEOFENCE_DETECTION_TOLERANCE){
+            if (currentUserLocation.equirectangularDistanceTo(ith_route) <= GEOFENCE_DETECTION_TOLERANCE){
                 return true;
             }
         }
@@ -127,7 +127,7 @@ public class PaymentActivity extends AppCompatActivity implements Observer, ZXin
 
     /**
      * Once a qr code is detected from the camera, grab the data,
-     * and receive the money. Drip then deletes from db, and the rider calls update()
+     * and receive the money. Driver then archives the trip, and the rider calls update()
      * String[] strData = [riderID, driverId, fairAmount]
      *
      * @param result is the resulting bytes grabbed from the QR Code
@@ -138,12 +138,12 @@ public class PaymentActivity extends AppCompatActivity implements Observer, ZXin
         String[] strData = qrData.split(",");
         Toast.makeText(this, "You have received " + strData[2] + " QR Bucks",
                 Toast.LENGTH_SHORT).show();
-        ApplicationController.deleteRiderCurrentTrip(this);
+        ApplicationController.archiveCurrentTrip(this);
         finish();
     }
 
     /**
-     * After a trip gets deleted, rider calls update, and transitions them to the
+     * After a trip gets archived, rider calls update, and transitions them to the
      * rating activty to rate their driver
      */
     @Override
@@ -12,12 +12,13 @@ import android.widget.Toast;
 
 import com.ownmyway.App;
 import com.ownmyway.controllers.ApplicationController;
+import com.ownmyway.db.DBTasks;
 import com.ownmyway.model.ApplicationModel;
-import com.ownmyway.model.Driver;
 import com.ownmyway.model.Trip;
 import com.ownmyway.model.User;
 import com.ownmyway.R;
 import com.ownmyway.views.UIErrorHandler;
+import com.google.android.gms.tasks.CancellationTokenSource;
 
 import java.util.Objects;
 import java.util.Observable;
@@ -35,6 +36,7 @@ public class RequestStatusActivity extends AppCompatActivity implements Observer
     private TextView usernameTextView;
     private TextView driverRatingTextView;
     private Button viewContactButton;
+    private final CancellationTokenSource pendingReads = new CancellationTokenSource();
 
     /**onCreate method will create the activity when called
      * @param savedInstanceState is a previous saved state for activity if available*/
@@ -59,18 +61,13 @@ public class RequestStatusActivity extends AppCompatActivity implements Observer
     /**Gets drivers info to be displayed*/
     @SuppressLint("SetTextI18n")
     public void getDriverInfo(String docID){
-        App.getDbManager().getDriver(docID, (resultData, err) -> {
-            if (resultData != null) {
-
-                //this fetched driver is from the db
-                Driver tmpDriver = (Driver) resultData.get("user");
-                usernameTextView.setText(Objects.requireNonNull(tmpDriver).getUsername());
-                driverRatingTextView.setText("Current Rating: " + tmpDriver.getRating() + " / 100.0");
-            }
-            else {
-                Toast.makeText(this, err.getMessage(), Toast.LENGTH_LONG).show();
-            }
-        });
+        DBTasks.cancellable(App.getDbManager().getCachedDriver(docID), pendingReads.getToken())
+                .addOnSuccessListener(tmpDriver -> {
+                    //this fetched driver is from the db
+                    usernameTextView.setText(Objects.requireNonNull(tmpDriver).getUsername());
+                    driverRatingTextView.setText("Current Rating: " + tmpDriver.getRating() + " / 100.0");
+                })
+                .addOnFailureListener(e -> Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show());
     }
 
 
@@ -133,6 +130,7 @@ public class RequestStatusActivity extends AppCompatActivity implements Observer
     @Override
     public void onDestroy() {
         super.onDestroy();
+        pendingReads.cancel();
         // THIS CODE SHOULD BE IMPLEMENTED IN EVERY VIEW
         ApplicationModel m = App.getModel();
         m.deleteObserver(this);
@@ -1,6 +1,7 @@
 package com.ownmyway.views.activities;
 
 import android.os.Bundle;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.Toast;
@@ -12,11 +13,13 @@ import com.ownmyway.controllers.ApplicationController;
 import com.ownmyway.model.ApplicationModel;
 import com.ownmyway.model.Trip;
 import com.ownmyway.model.User;
+import com.ownmyway.services.TripDiscovery;
 import com.ownmyway.R;
 import com.ownmyway.views.components.CustomTripList;
 import com.ownmyway.views.components.TripSearchRecord;
 import com.ownmyway.views.fragments.AcceptTripRequestFragment;
 import com.ownmyway.views.UIErrorHandler;
+import com.google.firebase.firestore.ListenerRegistration;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -32,10 +35,15 @@ import java.util.Observer;
 public class TripSearchActivity extends AppCompatActivity implements UIErrorHandler, Observer,
         AcceptTripRequestFragment.OnFragmentInteractionListener {
 
+    /** Load the next page once the driver scrolls within this many rows of the end of the list */
+    private static final int LOAD_MORE_THRESHOLD = 5;
+
     ListView tripSearchList;
     ArrayAdapter<TripSearchRecord> tripSearchRecordArrayAdapter;
     ArrayList<TripSearchRecord> tripDataList;
     private boolean showAcceptedPendingRides;
+    private ListenerRegistration tripsRegistration;
+    private TripDiscovery tripDiscovery;
 
     /**onCreate method creates the view. It is used to populate TripSearchActivity
      * @param savedInstanceState calls the previous saved state if there is one*/
@@ -66,9 +74,21 @@ public class TripSearchActivity extends AppCompatActivity implements UIErrorHand
                             .show(getSupportFragmentManager(), "VIEW_RECORD"));
 
             if (showAcceptedPendingRides) {
-                ApplicationController.getPendingTripsForDriver(this);
+                tripsRegistration = ApplicationController.getPendingTripsForDriver(this);
             } else {
-                ApplicationController.getTripsForUser(this);
+                tripDiscovery = ApplicationController.getTripsForUser(this);
+                tripsRegistration = tripDiscovery;
+                tripSearchList.setOnScrollListener(new AbsListView.OnScrollListener() {
+                    @Override
+                    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+                    @Override
+                    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                        if (tripDiscovery != null && firstVisibleItem + visibleItemCount >= totalItemCount - LOAD_MORE_THRESHOLD) {
+                            tripDiscovery.loadNextPage();
+                        }
+                    }
+                });
             }
         }
     }
@@ -141,5 +161,10 @@ public class TripSearchActivity extends AppCompatActivity implements UIErrorHand
         super.onDestroy();
         ApplicationModel m = App.getModel();
         m.deleteObserver(this);
+        if (tripsRegistration != null) {
+            tripsRegistration.remove();
+            tripsRegistration = null;
+            tripDiscovery = null;
+        }
     }
 }